@@ -0,0 +1,277 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import br.bireme.ngrams.NGrams.Result;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.spell.NGramDistance;
+
+/**
+ * Searches a piped input file using one reader thread (the caller), a pool of
+ * worker threads and one writer thread. The reader sends batches of lines to
+ * the workers which run searchRaw against the same shared IndexSearcher. The
+ * writer takes the batches in the input order, so the output file is the
+ * same as the one of the single threaded search. The selfCheck pair
+ * suppression is also done by the writer, in the input order, because it
+ * depends on the pairs found by the previous lines.
+ */
+public class BatchSearcher {
+    /*
+       Number of lines sent to a worker at once
+    */
+    public static final int DEF_BATCH_SIZE = 50;
+
+    /*
+       Indicates to the writer that there are no more batches
+    */
+    private static final Future<List<List<Result>>> END_OF_INPUT =
+                                         CompletableFuture.completedFuture(null);
+
+    public static void search(final NGIndex index,
+                              final NGSchema schema,
+                              final String inFile,
+                              final String inFileEncoding,
+                              final String outFile,
+                              final String outFileEncoding,
+                              final boolean report,
+                              final boolean selfCheck,
+                              final int numThreads) throws IOException,
+                                                                ParseException {
+        if (index == null) {
+            throw new NullPointerException("index");
+        }
+        if (schema == null) {
+            throw new NullPointerException("schema");
+        }
+        if (inFile == null) {
+            throw new NullPointerException("inFile");
+        }
+        if (inFileEncoding == null) {
+            throw new NullPointerException("inFileEncoding");
+        }
+        if (outFile == null) {
+            throw new NullPointerException("outFile");
+        }
+        if (outFileEncoding == null) {
+            throw new NullPointerException("outFileEncoding");
+        }
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads < 1");
+        }
+
+        final Charset inCharset = Charset.forName(inFileEncoding);
+        final Charset outCharset = Charset.forName(outFileEncoding);
+        final IndexSearcher searcher = index.acquireSearcher();
+        final NGAnalyzer analyzer = (NGAnalyzer)index.getAnalyzer();
+        final Parameters parameters = schema.getParameters();
+        final NGramDistance ngDistance = new NGramSimilarity(
+                                                       analyzer.getNgramSize());
+        final BlockingQueue<Future<List<List<Result>>>> queue =
+                                      new ArrayBlockingQueue<>(4 * numThreads);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+        try (final BufferedReader reader = Files.newBufferedReader(
+                                          new File(inFile).toPath(), inCharset);
+             final BufferedWriter writer = Files.newBufferedWriter(
+                                      new File(outFile).toPath(), outCharset)) {
+            NGrams.writeHeader(parameters, writer, report);
+
+            final Thread writerThread = new Thread(() -> writeBatches(
+                   parameters, writer, report, selfCheck, queue, pool, error),
+                                                        "BatchSearcher-writer");
+            writerThread.start();
+            try {
+                List<String> batch = new ArrayList<>(DEF_BATCH_SIZE);
+
+                while (error.get() == null) {
+                    final String line = reader.readLine();
+                    if (line == null) {
+                        break;
+                    }
+                    batch.add(line);
+                    if (batch.size() == DEF_BATCH_SIZE) {
+                        queue.put(submit(pool, parameters, searcher, analyzer,
+                                                    ngDistance, batch, error));
+                        batch = new ArrayList<>(DEF_BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty() && (error.get() == null)) {
+                    queue.put(submit(pool, parameters, searcher, analyzer,
+                                                    ngDistance, batch, error));
+                }
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                error.compareAndSet(null, new IOException(ie));
+            } catch (final IOException | RuntimeException ex) {
+                error.compareAndSet(null, ex);
+            } finally {
+                try {
+                    queue.put(END_OF_INPUT);
+                    writerThread.join();
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    error.compareAndSet(null, new IOException(ie));
+                }
+                pool.shutdownNow();
+            }
+        } finally {
+            index.releaseSearcher(searcher);
+        }
+        final Exception ex = error.get();
+        if (ex instanceof IOException) {
+            throw (IOException)ex;
+        }
+        if (ex instanceof ParseException) {
+            throw (ParseException)ex;
+        }
+        if (ex != null) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Sends a batch of lines to be searched by the worker threads.
+     * @return the future results of each line of the batch
+     */
+    private static Future<List<List<Result>>> submit(
+                                         final ExecutorService pool,
+                                         final Parameters parameters,
+                                         final IndexSearcher searcher,
+                                         final NGAnalyzer analyzer,
+                                         final NGramDistance ngDistance,
+                                         final List<String> batch,
+                                         final AtomicReference<Exception> error) {
+        assert pool != null;
+        assert batch != null;
+
+        return pool.submit(() -> (error.get() == null)
+            ? searchBatch(parameters, searcher, analyzer, ngDistance, batch)
+            : new ArrayList<>());
+    }
+
+    /**
+     * Searches each line of a batch. As the selfCheck pair suppression depends
+     * on the previous lines, it is not applied here.
+     * @return the results of each line of the batch
+     */
+    private static List<List<Result>> searchBatch(
+                                              final Parameters parameters,
+                                              final IndexSearcher searcher,
+                                              final NGAnalyzer analyzer,
+                                              final NGramDistance ngDistance,
+                                              final List<String> batch)
+                                            throws IOException, ParseException {
+        assert parameters != null;
+        assert searcher != null;
+        assert analyzer != null;
+        assert ngDistance != null;
+        assert batch != null;
+
+        final List<List<Result>> ret = new ArrayList<>(batch.size());
+        final Set<String> id_id = new HashSet<>();  // not used (no selfCheck)
+
+        for (final String line: batch) {
+            final List<Result> results = new ArrayList<>();
+            final PipedRecord record = PipedRecord.parseQuery(line, true,
+                                                     parameters.maxIdxFieldPos);
+            if (!record.isEmpty()) {
+                if (record.getRawPipes() + 1 != parameters.nameFields.size()) {
+                    throw new IOException("invalid number of fields: " + line);
+                }
+                NGrams.searchRaw(parameters, searcher, analyzer, ngDistance,
+                                       record, true, false, id_id, results);
+            }
+            ret.add(results);
+        }
+        return ret;
+    }
+
+    /**
+     * Writes the results of the batches in the input order.
+     */
+    private static void writeBatches(
+                         final Parameters parameters,
+                         final BufferedWriter writer,
+                         final boolean report,
+                         final boolean selfCheck,
+                         final BlockingQueue<Future<List<List<Result>>>> queue,
+                         final ExecutorService pool,
+                         final AtomicReference<Exception> error) {
+        assert parameters != null;
+        assert writer != null;
+        assert queue != null;
+        assert pool != null;
+        assert error != null;
+
+        final Set<String> id_id = new HashSet<>();
+        final List<Result> selected = new ArrayList<>();
+        int cur = 0;
+
+        while (true) {
+            final Future<List<List<Result>>> future;
+            try {
+                future = queue.take();
+            } catch (final InterruptedException ie) {
+                error.compareAndSet(null, new IOException(ie));
+                pool.shutdownNow();
+                break;
+            }
+            if (future == END_OF_INPUT) {
+                break;
+            }
+            if (error.get() != null) {
+                future.cancel(true);
+                continue;  // only drains the queue so the reader is not blocked
+            }
+            try {
+                for (final List<Result> results: future.get()) {
+                    if (++cur % 250 == 0) {
+                        System.out.println("<<< " + cur);
+                    }
+                    selected.clear();
+                    for (final Result result: results) {
+                        if (!selfCheck || id_id.add(result.idPair)) {
+                            selected.add(result);
+                        }
+                    }
+                    if (!selected.isEmpty()) {
+                        NGrams.writeOutput(parameters, selected, writer, report);
+                    }
+                }
+            } catch (final InterruptedException ie) {
+                error.compareAndSet(null, new IOException(ie));
+            } catch (final ExecutionException ee) {
+                final Throwable cause = ee.getCause();
+                error.compareAndSet(null, (cause instanceof Exception)
+                                    ? (Exception)cause : new IOException(cause));
+            } catch (final IOException | RuntimeException ex) {
+                error.compareAndSet(null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+/**
+ * Indexes a piped input file using one reader thread (the caller) and a pool
+ * of worker threads. The reader sends batches of lines to the workers which
+ * build the Lucene documents and add them to the shared IndexWriter.
+ * In the fresh build mode, as the index is empty, the documents of a batch
+ * are added with one addDocuments call, without the delete by id term of
+ * updateDocument. Documents whose id was already indexed are skipped and
+ * reported. Each worker reuses the same Lucene documents and fields
+ * (DocumentTemplate) for all of its lines: one template per line of a batch
+ * in the fresh build mode, otherwise only one.
+ */
+public class BulkIndexer {
+    /*
+       Number of lines sent to a worker at once
+    */
+    public static final int DEF_BATCH_SIZE = 500;
+
+    /*
+       Indicates to a worker that there are no more lines to be indexed
+    */
+    private static final List<String> END_OF_INPUT = new ArrayList<>();
+
+    // <id>|<ngram index/search text>|<content>|...|<content>
+    public static void index(final NGIndex index,
+                             final NGSchema schema,
+                             final String inFile,
+                             final String inFileEncoding,
+                             final int numThreads,
+                             final boolean freshBuild) throws IOException {
+        index(index, schema, inFile, inFileEncoding, numThreads, DEF_BATCH_SIZE,
+                                                                   freshBuild);
+    }
+
+    public static void index(final NGIndex index,
+                             final NGSchema schema,
+                             final String inFile,
+                             final String inFileEncoding,
+                             final int numThreads,
+                             final int batchSize,
+                             final boolean freshBuild) throws IOException {
+        if (index == null) {
+            throw new NullPointerException("index");
+        }
+        if (schema == null) {
+            throw new NullPointerException("schema");
+        }
+        if (inFile == null) {
+            throw new NullPointerException("inFile");
+        }
+        if (inFileEncoding == null) {
+            throw new NullPointerException("inFileEncoding");
+        }
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads < 1");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize < 1");
+        }
+
+        final long startTime = new GregorianCalendar().getTimeInMillis();
+        final Charset charset = Charset.forName(inFileEncoding);
+        final IndexWriter writer = index.getIndexWriter();
+        final BlockingQueue<List<String>> queue =
+                                      new ArrayBlockingQueue<>(2 * numThreads);
+        final AtomicInteger indexed = new AtomicInteger();
+        final AtomicReference<IOException> error = new AtomicReference<>();
+        final BytesRefHash ids = freshBuild ? new BytesRefHash() : null;
+        final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        int lineNumber = 0;
+
+        writer.deleteAll();
+        writer.commit();
+
+        for (int idx = 0; idx < numThreads; idx++) {
+            pool.execute(() -> indexBatches(writer, schema, queue, batchSize,
+                                                        ids, indexed, error));
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(
+                                          new File(inFile).toPath(), charset)) {
+            List<String> batch = new ArrayList<>(batchSize);
+
+            while (error.get() == null) {
+                final String line;
+                lineNumber++;
+                try {
+                    line = reader.readLine();
+                } catch (final MalformedInputException mie) {
+                    System.err.println("Line with another encoding. Line number:"
+                                                                 + lineNumber);
+                    continue;
+                }
+                if (line == null) {
+                    break;
+                }
+                batch.add(line);
+                if (batch.size() == batchSize) {
+                    queue.put(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                queue.put(batch);
+            }
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            error.compareAndSet(null, new IOException(ie));
+        } finally {
+            for (int idx = 0; idx < numThreads; idx++) {
+                try {
+                    queue.put(END_OF_INPUT);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                error.compareAndSet(null, new IOException(ie));
+            }
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+        NGrams.optimize(index, writer);
+
+        final long difTime = new GregorianCalendar().getTimeInMillis()
+                                                                   - startTime;
+        final int total = indexed.get();
+        System.out.println("Indexed documents: " + total + " in " +
+                 (difTime / 1000) + "s using " + numThreads + " thread(s) - " +
+                 ((difTime == 0) ? total : (total * 1000L / difTime)) +
+                                                                  " docs/s");
+    }
+
+    private static void indexBatches(final IndexWriter writer,
+                                     final NGSchema schema,
+                                     final BlockingQueue<List<String>> queue,
+                                     final int batchSize,
+                                     final BytesRefHash ids,
+                                     final AtomicInteger indexed,
+                                     final AtomicReference<IOException> error) {
+        assert writer != null;
+        assert schema != null;
+        assert queue != null;
+        assert indexed != null;
+        assert error != null;
+
+        final Parameters parameters = schema.getParameters();
+        // the documents of a batch are alive until addDocuments
+        final DocumentTemplate[] templates =
+                       new DocumentTemplate[(ids == null) ? 1 : batchSize];
+        final List<Document> docs = new ArrayList<>(templates.length);
+
+        for (int idx = 0; idx < templates.length; idx++) {
+            templates[idx] = parameters.plan.newTemplate();
+        }
+
+        while (true) {
+            final List<String> batch;
+            try {
+                batch = queue.take();
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                error.compareAndSet(null, new IOException(ie));
+                break;
+            }
+            if (batch == END_OF_INPUT) {
+                break;
+            }
+            if (error.get() != null) {
+                continue;  // only drains the queue so the reader is not blocked
+            }
+            try {
+                if (ids == null) {
+                    for (final String line: batch) {
+                        if (NGrams.indexDocument(writer, parameters,
+                                           templates[0], line, true, false)) {
+                            final int cur = indexed.incrementAndGet();
+                            if (cur % 100000 == 0) {
+                                System.out.println(">>> " + cur);
+                            }
+                        }
+                    }
+                } else {
+                    docs.clear();
+                    for (final String line: batch) {
+                        final Document doc = NGrams.pipe2Document(parameters,
+                                                 templates[docs.size()], line);
+                        if ((doc != null) && checkId(ids, doc)) {
+                            docs.add(doc);
+                        }
+                    }
+                    writer.addDocuments(docs);
+
+                    final int added = docs.size();
+                    final int cur = indexed.addAndGet(added);
+                    if (cur / 100000 > (cur - added) / 100000) {
+                        System.out.println(">>> " + (cur / 100000) * 100000);
+                    }
+                }
+            } catch (final IOException | RuntimeException ex) {
+                error.compareAndSet(null, (ex instanceof IOException)
+                                    ? (IOException)ex : new IOException(ex));
+            }
+        }
+    }
+
+    /**
+     * Checks if the document id was not already indexed.
+     * @param ids already indexed ids (UTF-8 bytes kept in shared blocks, so
+     *            two different ids are never taken as the same one)
+     * @param doc document to be indexed
+     * @return true if the document id is a new one
+     */
+    static boolean checkId(final BytesRefHash ids,
+                           final Document doc) {
+        assert ids != null;
+        assert doc != null;
+
+        final String id = doc.get(IdField.FNAME);
+        final boolean ret;
+
+        synchronized (ids) {
+            ret = (ids.add(new BytesRef(id)) >= 0);
+        }
+        if (!ret) {
+            System.err.println("Duplicated document id: " + id +
+                                                  " - the document was skipped");
+        }
+        return ret;
+    }
+}
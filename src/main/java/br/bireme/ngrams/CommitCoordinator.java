@@ -0,0 +1,146 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.lucene.index.IndexWriter;
+
+/**
+ * Merges the commit requests of concurrent callers into a single
+ * IndexWriter commit. The requests that arrive while a commit is running
+ * are committed together right after it. If windowMillis is greater than 0,
+ * a commit also waits until the oldest pending request is windowMillis old
+ * or until there are maxRequests pending requests, whatever happens first.
+ * With windowMillis 0, a request is committed at once if no commit is
+ * running. Each caller receives a future that is completed after the
+ * commit that made its changes durable.
+ */
+class CommitCoordinator {
+    private final NGIndex index;
+    private final long windowMillis;
+    private final int maxRequests;
+    private List<CompletableFuture<Void>> pending;
+    private long firstRequestTime;  // time of the oldest pending request
+    private Thread committer;
+    private boolean closed;
+
+    CommitCoordinator(final NGIndex index,
+                      final long windowMillis,
+                      final int maxRequests) {
+        assert index != null;
+        assert windowMillis >= 0;
+        assert maxRequests > 0;
+
+        this.index = index;
+        this.windowMillis = windowMillis;
+        this.maxRequests = maxRequests;
+        this.pending = new ArrayList<>();
+        this.closed = false;
+    }
+
+    /**
+     * Asks for a commit of the changes already sent to the index writer.
+     * @return a future completed when the changes are committed or null if
+     *         the coordinator is closed and the request must be sent to a
+     *         new one
+     */
+    synchronized CompletableFuture<Void> requestCommit() {
+        final CompletableFuture<Void> future;
+
+        if (closed) {
+            future = null;
+        } else {
+            future = new CompletableFuture<>();
+            if (pending.isEmpty()) {
+                firstRequestTime = System.currentTimeMillis();
+            }
+            pending.add(future);
+            if (committer == null) {
+                committer = new Thread(this::commitLoop,
+                                      "NGIndex-commit-" + index.getName());
+                committer.setDaemon(true);
+                committer.start();
+            } else if ((pending.size() == 1) ||
+                       (pending.size() >= maxRequests)) {
+                notifyAll();
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Commits the pending requests and stops the commit thread.
+     */
+    void close() {
+        final Thread thread;
+
+        synchronized (this) {
+            closed = true;
+            thread = committer;
+            notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            final List<CompletableFuture<Void>> batch;
+
+            synchronized (this) {
+                try {
+                    while (pending.isEmpty() && !closed) {
+                        wait();
+                    }
+                    while (!closed && (pending.size() < maxRequests)) {
+                        final long remaining = firstRequestTime + windowMillis
+                                                  - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException ie) {
+                    closed = true;
+                }
+                if (pending.isEmpty()) {
+                    committer = null;
+                    break;  // closed
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            commit(batch);
+        }
+    }
+
+    private void commit(final List<CompletableFuture<Void>> batch) {
+        assert batch != null;
+
+        try {
+            final IndexWriter writer = index.getIndexWriter();
+
+            writer.commit();
+            for (final CompletableFuture<Void> future: batch) {
+                future.complete(null);
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (final CompletableFuture<Void> future: batch) {
+                future.completeExceptionally(ex);
+            }
+        }
+    }
+}
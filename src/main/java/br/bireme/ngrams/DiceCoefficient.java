@@ -109,4 +109,55 @@ public class DiceCoefficient {
 	}
 	return (double)matches/(n+m);
     }
+
+    /**
+     * Creates the sorted bigram list of a string, so it can be compared with
+     * many strings by diceCoefficientOptimized(int[], String).
+     * @param s The string
+     * @return The sorted bigrams or null if the string is {@code null} or if it
+     *         contains less than 2 characters
+     */
+    public static int[] bigrams(String s) {
+        if (s == null || s.length() < 2)
+            return null;
+
+        final int n = s.length()-1;
+        final int[] sPairs = new int[n];
+        for (int i = 0; i < n; i++)
+            sPairs[i] = (s.charAt(i) << 16) | s.charAt(i+1);
+        Arrays.sort(sPairs);
+
+        return sPairs;
+    }
+
+    /**
+     * Same as diceCoefficientOptimized(s, t), with the bigrams of s created
+     * by bigrams(s).
+     * @param sPairs The sorted bigrams of the first string
+     * @param t The second String
+     * @return The dice coefficient between the two input strings
+     */
+    public static double diceCoefficientOptimized(int[] sPairs, String t) {
+        if (sPairs == null)
+            return 0;
+        final int[] tPairs = bigrams(t);
+        if (tPairs == null)
+            return 0;
+
+        final int n = sPairs.length;
+        final int m = tPairs.length;
+	int matches = 0, i = 0, j = 0;
+	while (i < n && j < m) {
+            if (sPairs[i] == tPairs[j]) {
+		matches += 2;
+		i++;
+		j++;
+            }
+            else if (sPairs[i] < tPairs[j])
+		i++;
+            else
+		j++;
+	}
+	return (double)matches/(n+m);
+    }
 }
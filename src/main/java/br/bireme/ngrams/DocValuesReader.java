@@ -0,0 +1,231 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Reads the comparison data of the index documents from the doc values
+ * written when the schema has the docValues option. The values are read
+ * through per segment iterators, which can only move forward, so the
+ * documents of a search are read in the document id order, walking each
+ * segment only once.
+ * A reader should be used by only one thread (one search).
+ */
+class DocValuesReader {
+    private final List<LeafReaderContext> leaves;
+    private final FieldHandler[] handlers;      // indexed by field position
+    private final String indexedName;           // indexed ngram doc values
+
+    private DocValuesReader(final IndexReader reader,
+                            final Parameters parameters) {
+        assert reader != null;
+        assert parameters != null;
+
+        final SchemaPlan plan = parameters.plan;
+        final int size = plan.size();
+
+        this.leaves = reader.leaves();
+        this.handlers = new FieldHandler[size];
+        for (int pos = 0; pos < size; pos++) {
+            handlers[pos] = plan.get(pos);
+        }
+        this.indexedName = plan.get(parameters.indexed.pos).dvName;
+    }
+
+    /**
+     * @param reader index reader
+     * @param parameters schema parameters
+     * @return a doc values reader or null if the schema does not use doc
+     *         values or if the index was created without them
+     */
+    static DocValuesReader create(final IndexReader reader,
+                                  final Parameters parameters) {
+        assert reader != null;
+        assert parameters != null;
+
+        DocValuesReader ret = null;
+
+        if (parameters.docValues) {
+            final String dvName =
+                         parameters.plan.get(parameters.indexed.pos).dvName;
+            for (final LeafReaderContext leaf: reader.leaves()) {
+                final FieldInfo info =
+                               leaf.reader().getFieldInfos().fieldInfo(dvName);
+                if ((info != null) &&
+                              (info.getDocValuesType() != DocValuesType.NONE)) {
+                    ret = new DocValuesReader(reader, parameters);
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the normalized indexed ngram field of the documents. They are
+     * read in the document id order so each segment is walked only once.
+     * @param scores documents to read
+     * @param count number of documents (from the first one) to read
+     * @return the field values in the same order of the documents. A value is
+     *         null if the document has no doc values (older segment)
+     * @throws IOException
+     */
+    String[] indexedValues(final ScoreDoc[] scores,
+                           final int count) throws IOException {
+        assert scores != null;
+        assert (count >= 0) && (count <= scores.length);
+
+        final String[] ret = new String[count];
+        final long[] keys = new long[count];  // doc id | position
+        int curLeaf = -1;
+        int curDoc = -1;
+        BinaryDocValues values = null;
+
+        for (int idx = 0; idx < count; idx++) {
+            keys[idx] = ((long)scores[idx].doc << 32) | idx;
+        }
+        Arrays.sort(keys);
+        for (final long key: keys) {
+            final int docID = (int)(key >>> 32);
+            final int sub = ReaderUtil.subIndex(docID, leaves);
+            final LeafReaderContext leaf = leaves.get(sub);
+            final int local = docID - leaf.docBase;
+
+            if ((sub != curLeaf) || (local <= curDoc)) {
+                values = DocValues.getBinary(leaf.reader(), indexedName);
+                curLeaf = sub;
+            }
+            curDoc = local;
+            if (values.advanceExact(local)) {
+                ret[(int)key] = values.binaryValue().utf8ToString();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the content of all schema fields of the documents, to be used by
+     * the field comparisons. They are read in the document id order so each
+     * segment is walked only once.
+     * @param docIDs documents to read
+     * @return the field contents ordered by field position, in the same order
+     *         of the documents. The contents of a document are null if it has
+     *         no doc values (older segment)
+     * @throws IOException
+     */
+    FieldHandler.Values[][] comparisonValues(final int[] docIDs)
+                                                            throws IOException {
+        assert docIDs != null;
+
+        final int count = docIDs.length;
+        final FieldHandler.Values[][] ret = new FieldHandler.Values[count][];
+        final BinaryDocValues[] normalized =
+                                       new BinaryDocValues[handlers.length];
+        final BinaryDocValues[] notNormalized =
+                                       new BinaryDocValues[handlers.length];
+        final SortedSetDocValues[] multiValued =
+                                    new SortedSetDocValues[handlers.length];
+        final long[] keys = new long[count];  // doc id | position
+        int curLeaf = -1;
+        int curDoc = -1;
+
+        for (int idx = 0; idx < count; idx++) {
+            keys[idx] = ((long)docIDs[idx] << 32) | idx;
+        }
+        Arrays.sort(keys);
+        for (final long key: keys) {
+            final int docID = (int)(key >>> 32);
+            final int sub = ReaderUtil.subIndex(docID, leaves);
+            final LeafReaderContext leaf = leaves.get(sub);
+            final int local = docID - leaf.docBase;
+
+            if ((sub != curLeaf) || (local <= curDoc)) {
+                final LeafReader reader = leaf.reader();
+
+                for (int pos = 0; pos < handlers.length; pos++) {
+                    final FieldHandler handler = handlers[pos];
+
+                    if (handler.isMultiValued()) {
+                        multiValued[pos] = DocValues.getSortedSet(reader,
+                                                                handler.dvName);
+                    } else {
+                        normalized[pos] = DocValues.getBinary(reader,
+                                                                handler.dvName);
+                    }
+                    notNormalized[pos] = DocValues.getBinary(reader,
+                                                   handler.dvNotNormalizedName);
+                }
+                curLeaf = sub;
+            }
+            curDoc = local;
+            ret[(int)key] = read(local, normalized, notNormalized, multiValued);
+        }
+        return ret;
+    }
+
+    /**
+     * @param local document id inside its segment
+     * @param normalized iterators of the normalized contents
+     * @param notNormalized iterators of the not normalized contents
+     * @param multiValued iterators of the normalized occurrences
+     * @return the field contents of the document or null if it has no doc
+     *         values
+     * @throws IOException
+     */
+    private FieldHandler.Values[] read(final int local,
+                                       final BinaryDocValues[] normalized,
+                                       final BinaryDocValues[] notNormalized,
+                                       final SortedSetDocValues[] multiValued)
+                                                            throws IOException {
+        final FieldHandler.Values[] ret =
+                                      new FieldHandler.Values[handlers.length];
+
+        for (int pos = 0; pos < handlers.length; pos++) {
+            if (!notNormalized[pos].advanceExact(local)) {
+                return null;
+            }
+            final String notNorm =
+                            notNormalized[pos].binaryValue().utf8ToString();
+
+            if (handlers[pos].isMultiValued()) {
+                final SortedSetDocValues values = multiValued[pos];
+                String[] occurrences = new String[0];
+
+                if (values.advanceExact(local)) {
+                    occurrences = new String[values.docValueCount()];
+                    for (int idx = 0; idx < occurrences.length; idx++) {
+                        occurrences[idx] =
+                             values.lookupOrd(values.nextOrd()).utf8ToString();
+                    }
+                }
+                ret[pos] = new FieldHandler.Values(null, notNorm, occurrences);
+            } else {
+                if (!normalized[pos].advanceExact(local)) {
+                    return null;
+                }
+                ret[pos] = new FieldHandler.Values(
+                       normalized[pos].binaryValue().utf8ToString(), notNorm,
+                                                                         null);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,83 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.io.IOException;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+
+/**
+ * A Lucene document shaped after the schema whose Lucene fields are created
+ * only once. Each call to fill() clears the document and sets the new field
+ * values, so the same Document and Field objects are used for every record.
+ * The returned document is only valid until the next call to fill(), so a
+ * template should be used by only one thread and the document should be
+ * given to the IndexWriter before the next record is processed.
+ */
+class DocumentTemplate {
+    private final SchemaPlan plan;
+    private final FieldHandler.Slot[] slots;  // same order as plan.indexOrder
+    private final StringField dbId;
+    private final Document doc;
+
+    DocumentTemplate(final SchemaPlan plan) {
+        assert plan != null;
+
+        final FieldHandler[] handlers = plan.indexOrder;
+
+        this.plan = plan;
+        this.slots = new FieldHandler.Slot[handlers.length];
+        for (int idx = 0; idx < handlers.length; idx++) {
+            slots[idx] = handlers[idx].newSlot();
+        }
+        this.dbId = new StringField("db_id", "", Store.YES);
+        this.doc = new Document();
+    }
+
+    /**
+     * Sets the field contents into the document.
+     * @param flds field contents ordered by field position
+     * @return the Lucene document
+     * @throws IOException if the database or the id field is missing
+     */
+    Document fill(final String[] flds) throws IOException {
+        assert flds != null;
+
+        final FieldHandler[] handlers = plan.indexOrder;
+        String dbName = null;
+        String id = null;
+
+        doc.clear();
+        for (int idx = 0; idx < handlers.length; idx++) {
+            final int pos = handlers[idx].field.pos;
+            final String ncontent = handlers[idx].index(doc, flds[pos],
+                                                                  slots[idx]);
+            if (plan.docValues) {
+                handlers[idx].indexDocValues(doc, slots[idx]);
+            }
+            if (pos == plan.dbPos) {
+                dbName = ncontent;
+            } else if (pos == plan.idPos) {
+                id = ncontent;
+            }
+        }
+        if (dbName == null) {
+            throw new IOException("dbName");
+        }
+        if (id == null) {
+            throw new IOException("id");
+        }
+        // Add field to avoid duplicated documents in the index
+        dbId.setStringValue(Tools.normalize(dbName + "_" + id,
+                                                        NGrams.OCC_SEPARATOR));
+        doc.add(dbId);
+
+        return doc;
+    }
+}
@@ -7,7 +7,6 @@
 
 package br.bireme.ngrams;
 
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -115,7 +114,7 @@ class ExactField extends Field {
 }
 
 class RegExpField extends Field {
-    final Matcher matcher;
+    final Pattern pattern;  // thread safe, one Matcher is created per use
     final int groupNum;
 
     RegExpField(final String name,
@@ -138,7 +137,7 @@ class RegExpField extends Field {
         if (groupNumber <= 0) {
             throw new IllegalArgumentException("groupNumber <= 0");
         }
-        this.matcher = Pattern.compile(pattern).matcher("");
+        this.pattern = Pattern.compile(pattern);
         this.groupNum = groupNumber;
     }
 }
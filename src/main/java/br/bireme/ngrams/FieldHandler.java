@@ -0,0 +1,812 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import br.bireme.ngrams.Field.Status;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.search.spell.NGramDistance;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Indexing and comparison code of a schema field. There is one subclass for
+ * each field type so the type dispatch is done only once, when the schema is
+ * compiled into a SchemaPlan. This base class handles the fields that are
+ * only stored and not compared (NoCompareField).
+ */
+class FieldHandler {
+    /**
+     * Lucene fields of a schema field that are reused from one indexed
+     * record to the next.
+     */
+    static class Slot {
+        final org.apache.lucene.document.Field normalized;
+        final org.apache.lucene.document.Field notNormalized;
+        final IntField length;  // normalized content length (indexed ngram)
+        StoredField[] values;  // multiple occurrences (authors)
+        int numValues;         // occurrences of the current record (authors)
+        BinaryDocValuesField dvNormalized;     // only if the schema
+        BinaryDocValuesField dvNotNormalized;  // uses doc values
+        SortedSetDocValuesField[] dvValues;    // multiple occurrences (authors)
+        NumericDocValuesField signature;  // trigram signature (indexed ngram)
+
+        Slot(final org.apache.lucene.document.Field normalized,
+             final org.apache.lucene.document.Field notNormalized) {
+            this(normalized, notNormalized, null);
+        }
+
+        Slot(final org.apache.lucene.document.Field normalized,
+             final org.apache.lucene.document.Field notNormalized,
+             final IntField length) {
+            this.normalized = normalized;
+            this.notNormalized = notNormalized;
+            this.length = length;
+            this.values = new StoredField[0];
+            this.dvValues = new SortedSetDocValuesField[0];
+        }
+    }
+
+    /**
+     * Field content of a search expression prepared once per query and
+     * compared with the content of many index documents. Each handler sets
+     * only what its comparison uses.
+     */
+    static class Probe {
+        final String text;   // trimmed content
+        String normalized;   // normalized content
+        String group;        // regular expression group of the normalized content
+        String[] authors;    // normalized authors
+        int[] bigrams;       // sorted bigrams (dice coefficient)
+
+        Probe(final String text) {
+            assert text != null;
+
+            this.text = text;
+        }
+    }
+
+    /**
+     * Field content of an index document, read from its stored fields or
+     * from its doc values.
+     */
+    static class Values {
+        final String normalized;     // normalized content
+        final String notNormalized;  // not normalized content
+        final String[] occurrences;  // normalized occurrences (authors)
+
+        Values(final String normalized,
+               final String notNormalized,
+               final String[] occurrences) {
+            this.normalized = normalized;
+            this.notNormalized = notNormalized;
+            this.occurrences = occurrences;
+        }
+    }
+
+    final br.bireme.ngrams.Field field;
+    final String name;              // field name
+    final String notNormalizedName; // name of the not normalized stored field
+    final String dvName;            // doc values of the normalized content
+    final String dvNotNormalizedName; // doc values of the not normalized one
+
+    FieldHandler(final br.bireme.ngrams.Field field) {
+        assert field != null;
+
+        this.field = field;
+        this.name = field.name;
+        this.notNormalizedName = field.name + NGrams.NOT_NORMALIZED_FLD;
+        this.dvName = name + NGrams.DOC_VALUES_FLD;
+        this.dvNotNormalizedName = notNormalizedName + NGrams.DOC_VALUES_FLD;
+    }
+
+    /**
+     * Creates the handler of a field.
+     * @param field schema field
+     * @return the handler associated with the field type
+     */
+    static FieldHandler create(final br.bireme.ngrams.Field field) {
+        if (field == null) {
+            throw new NullPointerException("field");
+        }
+        final FieldHandler ret;
+
+        if (field instanceof IndexedNGramField) {
+            ret = new IndexedNGramHandler(field);
+        } else if (field instanceof NGramField) {
+            ret = new NGramHandler((NGramField)field);
+        } else if (field instanceof DiceField) {
+            ret = new DiceHandler((DiceField)field);
+        } else if (field instanceof RegExpField) {
+            ret = new RegExpHandler((RegExpField)field);
+        } else if (field instanceof ExactField) {
+            ret = new ExactHandler(field);
+        } else if (field instanceof AuthorsField) {
+            ret = new AuthorsHandler(field);
+        } else if ((field instanceof DatabaseField) ||
+                   (field instanceof IdField)) {
+            ret = new KeyHandler(field);
+        } else {
+            ret = new FieldHandler(field);
+        }
+        return ret;
+    }
+
+    /**
+     * @param content field content
+     * @return the normalized field content as stored into the index
+     */
+    static String normalize(final String content) {
+        assert content != null;
+
+        return Tools.limitSize(Tools.normalize(content, NGrams.OCC_SEPARATOR),
+                                                NGrams.MAX_NG_TEXT_SIZE).trim();
+    }
+
+    /**
+     * Creates the Lucene fields used to add this field content to a document.
+     * They are reused by a DocumentTemplate for every indexed record.
+     * @return the reusable Lucene fields
+     */
+    Slot newSlot() {
+        return new Slot(new StoredField(name, ""),
+                        new StoredField(notNormalizedName, ""));
+    }
+
+    /**
+     * Sets the field content into the reusable Lucene fields and adds them to
+     * a Lucene document.
+     * @param doc Lucene document
+     * @param content field content (not normalized)
+     * @param slot reusable Lucene fields created by newSlot()
+     * @return the normalized content
+     */
+    String index(final Document doc,
+                 final String content,
+                 final Slot slot) {
+        assert doc != null;
+        assert content != null;
+        assert slot != null;
+
+        final String ncontent = normalize(content);
+
+        slot.normalized.setStringValue(ncontent);
+        doc.add(slot.normalized);
+        slot.notNormalized.setStringValue(content.trim());
+        doc.add(slot.notNormalized);
+
+        return ncontent;
+    }
+
+    /**
+     * Adds the normalized and not normalized contents set by index() as doc
+     * values, so comparisons can read them without the stored fields.
+     * @param doc Lucene document
+     * @param slot reusable Lucene fields already filled by index()
+     */
+    void indexDocValues(final Document doc,
+                        final Slot slot) {
+        assert doc != null;
+        assert slot != null;
+
+        if (slot.dvNotNormalized == null) {
+            slot.dvNormalized = new BinaryDocValuesField(dvName, new BytesRef());
+            slot.dvNotNormalized = new BinaryDocValuesField(dvNotNormalizedName,
+                                                                new BytesRef());
+        }
+        slot.dvNormalized.setBytesValue(
+                                  new BytesRef(slot.normalized.stringValue()));
+        doc.add(slot.dvNormalized);
+        slot.dvNotNormalized.setBytesValue(
+                               new BytesRef(slot.notNormalized.stringValue()));
+        doc.add(slot.dvNotNormalized);
+    }
+
+    /**
+     * @return true if the field has multiple normalized values (sorted set
+     *         doc values)
+     */
+    boolean isMultiValued() {
+        return false;
+    }
+
+    /**
+     * @param doc index document with the stored fields
+     * @return the field content of the document
+     */
+    Values values(final Document doc) {
+        assert doc != null;
+
+        return new Values(doc.get(name), doc.get(notNormalizedName), null);
+    }
+
+    /**
+     * Prepares the field content of a search expression to be compared with
+     * many index documents.
+     * @param text trimmed field content of the search expression
+     * @return the prepared content
+     */
+    Probe prepare(final String text) {
+        return new Probe(text);
+    }
+
+    /**
+     * Compares the field content of the search expression with the content
+     * of an index document.
+     * @param similarity similarity of the indexed ngram fields
+     * @param ngDistance ngram distance function
+     * @param probe field content of the search expression created by prepare()
+     * @param values field content of the index document
+     * @return the comparison result
+     */
+    CheckFieldResult check(final float similarity,
+                           final NGramDistance ngDistance,
+                           final Probe probe,
+                           final Values values) {
+        assert ngDistance != null;
+        assert probe != null;
+        assert values != null;
+
+        final String fldText = values.notNormalized;
+
+        return new CheckFieldResult(name, probe.text, fldText, Condition.IGNORE,
+                                   ngDistance.getDistance(probe.text, fldText));
+    }
+
+    /**
+     * @return relative cost of check(). Used to order the field comparisons
+     *         so the cheaper ones are done first
+     */
+    int checkCost() {
+        return 5;
+    }
+
+    /**
+     * @return true if check() can return a condition counted as a matched
+     *         field (SIMILAR). Otherwise it returns IGNORE
+     */
+    boolean canMatch() {
+        return false;
+    }
+
+    /**
+     * Converts the result of a comparison into a condition.
+     * @param cmp value returned by compareFields()
+     * @return the condition
+     */
+    static Condition condition(final int cmp) {
+        final Condition ret;
+
+        switch (cmp) {
+            case -3: ret = Condition.DENY_DUP; break;
+            case -2: ret = Condition.MAX_SCORE; break;
+            case -1: ret = Condition.NOT_SIMILAR; break;
+            case 0: ret = Condition.IGNORE; break;
+            default: ret = Condition.SIMILAR;
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * @param fld - text used to search
+     * @param text - txt from index
+     * @return -3 : fields dont match and contentMatch is DENY_DUP
+     *         -2 : fields dont match and contentMatch is MAX_SCORE
+     *         -1 : fields dont match and contentMatch is required
+     *          0 : ignore this field
+     *          1 : fields match
+     */
+    int compareFields(final String fld,
+                      final String text) {
+        final int ret;
+        final String xfld = (fld == null) ? "" : fld.trim();
+        final String xtext = (text == null) ? "" : text.trim();
+
+        if (xfld.equals(xtext)) {
+            ret = xfld.isEmpty() ? 0 : 1;
+        } else {
+            if (xfld.isEmpty() || xtext.isEmpty()) ret = 0;
+            else if (field.contentMatch == Status.DENY_DUP) ret = -3;
+            else if (field.contentMatch == Status.MAX_SCORE) ret = -2;
+            else ret = -1;
+        }
+
+        return ret;
+    }
+}
+
+class IndexedNGramHandler extends FieldHandler {
+    IndexedNGramHandler(final br.bireme.ngrams.Field field) {
+        super(field);
+    }
+
+    @Override
+    Slot newSlot() {
+        final Slot slot = new Slot(new TextField(name, "", Store.YES),
+                             new StoredField(notNormalizedName, ""),
+                             new IntField(name + NGrams.LENGTH_FLD, 0, Store.NO));
+
+        slot.signature = new NumericDocValuesField(
+                                             name + NGrams.SIGNATURE_FLD, 0L);
+        return slot;
+    }
+
+    /**
+     * Also indexes the normalized content length used by the search length
+     * filter and the trigram signature used by the search signature filter.
+     */
+    @Override
+    String index(final Document doc,
+                 final String content,
+                 final Slot slot) {
+        final String ncontent = super.index(doc, content, slot);
+
+        slot.length.setIntValue(ncontent.length());
+        doc.add(slot.length);
+        slot.signature.setLongValue(SignatureQuery.signature(ncontent));
+        doc.add(slot.signature);
+
+        return ncontent;
+    }
+
+    @Override
+    int checkCost() {
+        return 0;
+    }
+
+    @Override
+    CheckFieldResult check(final float similarity,
+                           final NGramDistance ngDistance,
+                           final Probe probe,
+                           final Values values) {
+        assert probe != null;
+        assert values != null;
+
+        final String fldText = values.notNormalized;
+
+        return new CheckFieldResult(name, probe.text, fldText, Condition.IGNORE,
+                                                                   similarity);
+    }
+}
+
+/**
+ * Database and id fields.
+ */
+class KeyHandler extends FieldHandler {
+    KeyHandler(final br.bireme.ngrams.Field field) {
+        super(field);
+    }
+
+    @Override
+    Slot newSlot() {
+        return new Slot(new StringField(name, "", Store.YES),
+                        new StoredField(notNormalizedName, ""));
+    }
+}
+
+class AuthorsHandler extends FieldHandler {
+    AuthorsHandler(final br.bireme.ngrams.Field field) {
+        super(field);
+    }
+
+    @Override
+    Slot newSlot() {
+        return new Slot(null, new StoredField(notNormalizedName, ""));
+    }
+
+    @Override
+    String index(final Document doc,
+                 final String content,
+                 final Slot slot) {
+        assert doc != null;
+        assert content != null;
+        assert slot != null;
+
+        slot.notNormalized.setStringValue(content.trim());
+        doc.add(slot.notNormalized);
+        final String[] authors = Tools.normalize2(content,
+                                                        NGrams.OCC_SEPARATOR);
+        if (authors != null) {
+            final int len = authors.length;
+
+            if (slot.values.length < len) {
+                final StoredField[] values = Arrays.copyOf(slot.values, len);
+                for (int idx = slot.values.length; idx < len; idx++) {
+                    values[idx] = new StoredField(name, "");
+                }
+                slot.values = values;
+            }
+            for (int idx = 0; idx < len; idx++) {
+                slot.values[idx].setStringValue(authors[idx]);
+                doc.add(slot.values[idx]);
+            }
+        }
+        slot.numValues = (authors == null) ? 0 : authors.length;
+
+        return null;
+    }
+
+    @Override
+    void indexDocValues(final Document doc,
+                        final Slot slot) {
+        assert doc != null;
+        assert slot != null;
+
+        final int len = slot.numValues;
+
+        if (slot.dvNotNormalized == null) {
+            slot.dvNotNormalized = new BinaryDocValuesField(dvNotNormalizedName,
+                                                                new BytesRef());
+        }
+        slot.dvNotNormalized.setBytesValue(
+                               new BytesRef(slot.notNormalized.stringValue()));
+        doc.add(slot.dvNotNormalized);
+
+        if (slot.dvValues.length < len) {
+            final SortedSetDocValuesField[] dvValues =
+                                            Arrays.copyOf(slot.dvValues, len);
+            for (int idx = slot.dvValues.length; idx < len; idx++) {
+                dvValues[idx] = new SortedSetDocValuesField(dvName,
+                                                                new BytesRef());
+            }
+            slot.dvValues = dvValues;
+        }
+        for (int idx = 0; idx < len; idx++) {
+            slot.dvValues[idx].setBytesValue(
+                                   new BytesRef(slot.values[idx].stringValue()));
+            doc.add(slot.dvValues[idx]);
+        }
+    }
+
+    @Override
+    boolean isMultiValued() {
+        return true;
+    }
+
+    @Override
+    Values values(final Document doc) {
+        assert doc != null;
+
+        return new Values(null, Tools.mkString(doc.getValues(notNormalizedName),
+                                      NGrams.OCC_SEPARATOR), doc.getValues(name));
+    }
+
+    @Override
+    int checkCost() {
+        return 4;
+    }
+
+    @Override
+    boolean canMatch() {
+        return true;
+    }
+
+    @Override
+    Probe prepare(final String text) {
+        final Probe probe = new Probe(text);
+
+        probe.authors = Tools.normalize2(text, NGrams.OCC_SEPARATOR);
+        probe.bigrams = DiceCoefficient.bigrams(text);
+
+        return probe;
+    }
+
+    @Override
+    CheckFieldResult check(final float similarity,
+                           final NGramDistance ngDistance,
+                           final Probe probe,
+                           final Values values) {
+        assert probe != null;
+        assert values != null;
+
+        final String text = probe.text;
+        final String[] normTextAuthors = probe.authors;
+        final String[] normFldAuthors = values.occurrences;
+        final String fldAuthors = values.notNormalized;
+        final boolean maxValue = (field.contentMatch == Status.MAX_SCORE);
+        final boolean denyDup = (field.contentMatch == Status.DENY_DUP);
+        final CheckFieldResult ret;
+
+        if ((normTextAuthors.length > 0) && (normFldAuthors.length > 0)) {
+            final Set<String> authorSet = new HashSet<>();
+
+            for (String fldAuthor: normFldAuthors) {
+                final String au = fldAuthor.trim();
+                if (!au.isEmpty()) authorSet.add(au);
+            }
+            boolean found = true;
+            for (String author: normTextAuthors) {
+                final String aut = author.trim();
+                if ((!aut.isEmpty()) && (!authorSet.isEmpty())) { // Do not remove
+                    if (!checkAuthor(aut, authorSet)) {
+                        found = false;
+                        break;
+                    }
+                }
+            }
+            if (found) {
+                final float sym = (float)
+            DiceCoefficient.diceCoefficientOptimized(probe.bigrams, fldAuthors);
+                if (sym < 0.75) {
+                    if (denyDup) {
+                        ret = new CheckFieldResult(name, text, fldAuthors,
+                                                       Condition.DENY_DUP, sym);
+                    } else {
+                        ret = new CheckFieldResult(name, text, fldAuthors,
+                                                    Condition.NOT_SIMILAR, sym);
+                    }
+                } else {
+                    ret = new CheckFieldResult(name, text, fldAuthors,
+                                                        Condition.SIMILAR, sym);
+                }
+            } else {
+                if (denyDup) {
+                    ret = new CheckFieldResult(name, text, fldAuthors,
+                                               Condition.DENY_DUP, 0);
+                } else {
+                    ret = new CheckFieldResult(name, text, fldAuthors,
+                     maxValue ? Condition.MAX_SCORE : Condition.NOT_SIMILAR, 0);
+                }
+            }
+        } else {
+            if (denyDup) {
+                ret = new CheckFieldResult(name, "", "",
+                                                         Condition.DENY_DUP, 0);
+            } else {
+                ret = new CheckFieldResult(name, "", "",
+                     maxValue ? Condition.MAX_SCORE : Condition.NOT_SIMILAR, 0);
+            }
+        }
+
+        return ret;
+    }
+
+    private static boolean checkAuthor(final String author,
+                                       final Set<String> authors) {
+        final double THRESHOLD = 0.4;
+        String moreSimilar = null;
+        double similarity = THRESHOLD;
+
+        for (String aut: authors) {
+            final double diceCoefficient =
+                          DiceCoefficient.diceCoefficientOptimized(author, aut);
+            if (diceCoefficient >= similarity) {
+                similarity = diceCoefficient;
+                moreSimilar = aut;
+            }
+        }
+        final boolean ret = (moreSimilar != null);
+        if (ret) authors.remove(moreSimilar);
+
+        return ret;
+    }
+}
+
+class NGramHandler extends FieldHandler {
+    private final float minScore;
+
+    NGramHandler(final NGramField field) {
+        super(field);
+        this.minScore = field.minScore;
+    }
+
+    @Override
+    Probe prepare(final String text) {
+        final Probe probe = new Probe(text);
+
+        probe.normalized = normalize(text);
+
+        return probe;
+    }
+
+    @Override
+    int checkCost() {
+        return 3;
+    }
+
+    @Override
+    boolean canMatch() {
+        return true;
+    }
+
+    @Override
+    CheckFieldResult check(final float similarity,
+                           final NGramDistance ngDistance,
+                           final Probe probe,
+                           final Values values) {
+        assert ngDistance != null;
+        assert probe != null;
+        assert values != null;
+
+        final String normFldText = values.normalized;
+        final String fldText = values.notNormalized;
+        final float sim = ngDistance.getDistance(normFldText, probe.normalized);
+        final Condition condition;
+
+        if (!normFldText.isEmpty() && (sim >= minScore)) {
+            condition = Condition.SIMILAR;
+        } else if (field.contentMatch == Status.DENY_DUP) {
+            condition = Condition.DENY_DUP;
+        } else {
+            condition = Condition.NOT_SIMILAR;
+        }
+        return new CheckFieldResult(name, probe.text, fldText, condition, sim);
+    }
+}
+
+class DiceHandler extends FieldHandler {
+    private final float minScore;
+
+    DiceHandler(final DiceField field) {
+        super(field);
+        this.minScore = field.minScore;
+    }
+
+    @Override
+    Probe prepare(final String text) {
+        final Probe probe = new Probe(text);
+
+        probe.normalized = normalize(text);
+        probe.bigrams = DiceCoefficient.bigrams(probe.normalized);
+
+        return probe;
+    }
+
+    @Override
+    int checkCost() {
+        return 3;
+    }
+
+    @Override
+    boolean canMatch() {
+        return true;
+    }
+
+    @Override
+    CheckFieldResult check(final float similarity,
+                           final NGramDistance ngDistance,
+                           final Probe probe,
+                           final Values values) {
+        assert probe != null;
+        assert values != null;
+
+        final String normFldText = values.normalized;
+        final String fldText = values.notNormalized;
+        final float sim = (float)DiceCoefficient.diceCoefficientOptimized(
+                                                  probe.bigrams, normFldText);
+        final Condition condition;
+
+        if (!normFldText.isEmpty() && (sim >= minScore)) {
+            condition = Condition.SIMILAR;
+        } else if (field.contentMatch == Status.DENY_DUP) {
+            condition = Condition.DENY_DUP;
+        } else {
+            condition = Condition.NOT_SIMILAR;
+        }
+        return new CheckFieldResult(name, probe.text, fldText, condition, sim);
+    }
+}
+
+class RegExpHandler extends FieldHandler {
+    private final Pattern pattern;
+    private final int groupNum;
+
+    RegExpHandler(final RegExpField field) {
+        super(field);
+        this.pattern = field.pattern;
+        this.groupNum = field.groupNum;
+    }
+
+    @Override
+    Probe prepare(final String text) {
+        final Probe probe = new Probe(text);
+
+        probe.normalized = normalize(text);
+        probe.group = group(probe.normalized);
+
+        return probe;
+    }
+
+    @Override
+    int checkCost() {
+        return 2;
+    }
+
+    @Override
+    boolean canMatch() {
+        return true;
+    }
+
+    @Override
+    CheckFieldResult check(final float similarity,
+                           final NGramDistance ngDistance,
+                           final Probe probe,
+                           final Values values) {
+        assert probe != null;
+        assert values != null;
+
+        final String normFldText = values.normalized;
+        final String fldText = values.notNormalized;
+        final String content1 = group(normFldText);
+        final Condition condition = condition(compareFields(content1,
+                                                                 probe.group));
+
+        return new CheckFieldResult(name, probe.text, fldText, condition,
+                                    (condition == Condition.SIMILAR) ? 1 : 0);
+    }
+
+    /**
+     * @param text normalized content
+     * @return the trimmed regular expression group or null if the regular
+     *         expression was not found
+     */
+    private String group(final String text) {
+        final Matcher matcher = pattern.matcher(text);
+        String content = null;
+
+        if (matcher.find()) {
+            content = matcher.group(groupNum);
+            content = (content == null) ? "" : content.trim();
+        }
+        return content;
+    }
+}
+
+class ExactHandler extends FieldHandler {
+    ExactHandler(final br.bireme.ngrams.Field field) {
+        super(field);
+    }
+
+    @Override
+    Probe prepare(final String text) {
+        final Probe probe = new Probe(text);
+
+        probe.normalized = normalize(text);
+
+        return probe;
+    }
+
+    @Override
+    int checkCost() {
+        return 1;
+    }
+
+    @Override
+    boolean canMatch() {
+        return true;
+    }
+
+    @Override
+    CheckFieldResult check(final float similarity,
+                           final NGramDistance ngDistance,
+                           final Probe probe,
+                           final Values values) {
+        assert probe != null;
+        assert values != null;
+
+        final String normFldText = values.normalized;
+        final String fldText = values.notNormalized;
+        final Condition condition = condition(compareFields(probe.normalized,
+                                                                 normFldText));
+
+        return new CheckFieldResult(name, probe.text, fldText, condition,
+                                    (condition == Condition.SIMILAR) ? 1 : 0);
+    }
+}
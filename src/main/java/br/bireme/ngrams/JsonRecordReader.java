@@ -0,0 +1,174 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Map;
+import org.apache.commons.text.StringEscapeUtils;
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.JsonToken;
+import tools.jackson.core.ObjectReadContext;
+import tools.jackson.core.json.JsonFactory;
+
+/**
+ * Reads a stream of json objects (one per line - NDJSON) with only one
+ * streaming parser and converts each object into an array of field contents
+ * ordered by the schema field positions, ready to be used to create a Lucene
+ * document. Object properties are mapped onto the schema fields by name.
+ * Unknown properties are ignored and missing fields are empty. Field contents
+ * receive the same cleaning applied to the piped documents (html entities
+ * decoding, colons converted into spaces and trimming).
+ *
+ * Json syntax errors are thrown as tools.jackson.core.JacksonException and
+ * stop the reading. Invalid records (wrong property types, missing id or
+ * database) are fully consumed before the IOException is thrown, so the
+ * reading can go on with the next record.
+ */
+class JsonRecordReader implements Closeable {
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final Parameters parameters;
+    private final JsonParser parser;
+    private final int size;
+    private int lineNumber;
+
+    JsonRecordReader(final Parameters parameters,
+                     final Reader reader) {
+        assert parameters != null;
+        assert reader != null;
+
+        this.parameters = parameters;
+        this.parser = FACTORY.createParser(ObjectReadContext.empty(),
+                                           reader);
+        this.size = parameters.maxIdxFieldPos + 1;
+        this.lineNumber = 0;
+    }
+
+    /**
+     * @return input line number where the last read record starts
+     */
+    int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Reads the next json object.
+     * @return the field contents ordered by field position or null if there
+     *         are no more objects
+     * @throws IOException if the object is not a valid record
+     */
+    String[] next() throws IOException {
+        final JsonToken first = parser.nextToken();
+        if (first == null) {
+            return null;
+        }
+        lineNumber = parser.currentTokenLocation().getLineNr();
+        if (first != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            throw new IOException("json object expected");
+        }
+
+        final Map<String,br.bireme.ngrams.Field> nameFields =
+                                                         parameters.nameFields;
+        final String[] fields = new String[size];
+        String error = null;
+
+        Arrays.fill(fields, "");
+        while (parser.nextToken() == JsonToken.PROPERTY_NAME) {
+            final String name = parser.currentName();
+            final JsonToken token = parser.nextToken();
+            final br.bireme.ngrams.Field fld = nameFields.get(name);
+
+            if (fld == null) {
+                parser.skipChildren();
+            } else {
+                final String content = readContent(token);
+                if (content == null) {
+                    error = "Illegal json format: field [" + name + "]";
+                } else {
+                    fields[fld.pos] = clean(content);
+                }
+            }
+        }
+        if (error != null) {
+            throw new IOException(error);
+        }
+        if (fields[parameters.id.pos].isEmpty()) {
+            throw new IOException("id");
+        }
+        if (fields[parameters.db.pos].isEmpty()) {
+            throw new IOException("dbName");
+        }
+        return fields;
+    }
+
+    /**
+     * Reads the current property value.
+     * @param token current token
+     * @return the property content or null if it is not a string, a number or
+     *         a list of them. A list is converted into occurrences separated
+     *         by NGrams.OCC_SEPARATOR
+     */
+    private String readContent(final JsonToken token) {
+        assert token != null;
+
+        final String ret;
+
+        if (token == JsonToken.VALUE_NULL) {
+            ret = "";
+        } else if (token == JsonToken.START_ARRAY) {
+            final StringBuilder builder = new StringBuilder();
+            boolean valid = true;
+            boolean first = true;
+
+            for (JsonToken elem = parser.nextToken(); elem != JsonToken.END_ARRAY;
+                                                    elem = parser.nextToken()) {
+                if (isScalar(elem)) {
+                    if (first) {
+                        first = false;
+                    } else {
+                        builder.append(NGrams.OCC_SEPARATOR);
+                    }
+                    builder.append(parser.getString());
+                } else {
+                    parser.skipChildren();
+                    valid = false;
+                }
+            }
+            ret = valid ? builder.toString() : null;
+        } else if (isScalar(token)) {
+            ret = parser.getString();
+        } else {
+            parser.skipChildren();
+            ret = null;
+        }
+        return ret;
+    }
+
+    private static boolean isScalar(final JsonToken token) {
+        return (token == JsonToken.VALUE_STRING) ||
+               (token == JsonToken.VALUE_NUMBER_INT) ||
+               (token == JsonToken.VALUE_NUMBER_FLOAT);
+    }
+
+    private static String clean(final String content) {
+        assert content != null;
+
+        final String decoded = (content.indexOf('&') == -1) ? content
+                                   : StringEscapeUtils.unescapeHtml4(content);
+        return decoded.replace(':', ' ').trim();
+    }
+
+    @Override
+    public void close() {
+        parser.close();
+    }
+}
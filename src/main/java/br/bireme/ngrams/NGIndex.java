@@ -10,25 +10,85 @@ package br.bireme.ngrams;
 import java.io.File;
 import java.io.IOException;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.MMapDirectory;
 
 /**
+ * Lucene index used by NGrams. Searches share a long-lived SearcherManager
+ * (acquireSearcher/releaseSearcher) that is refreshed by a background thread,
+ * so index changes become visible after at most maxStaleSec seconds. If
+ * nearRealTime is true, the searcher is opened from the IndexWriter and also
+ * sees the documents that were not committed yet, otherwise it only sees
+ * the committed ones.
  *
  * @author Heitor Barbieri
  * date: 20151013
  */
 public class NGIndex {
+    /*
+       Default maximum time (seconds) before index changes are visible to
+       the shared searcher
+    */
+    public static final double DEF_MAX_STALE_SEC = 1.0;
+
+    /*
+       Default maximum time (milliseconds) a commit request waits to be
+       merged with other ones. With 0, a request is committed at once if no
+       commit is running, and only the requests that arrive during a commit
+       are merged into the next one.
+    */
+    public static final long DEF_COMMIT_WINDOW_MS = 0;
+
+    /*
+       Default number of pending commit requests that forces a commit
+    */
+    public static final int DEF_MAX_COMMIT_REQUESTS = 1000;
+
+    /*
+       If true, the searchers rank the documents by OverlapSimilarity (shared
+       ngrams) instead of BM25. Both use the same norms, so it does not
+       require reindexing. Use -Dngrams.bm25Similarity=true to compare with
+       the previous behavior.
+    */
+    public static final boolean OVERLAP_SIMILARITY =
+                                   !Boolean.getBoolean("ngrams.bm25Similarity");
+
+    /*
+       Creates the searchers with the similarity used by NGrams
+    */
+    private static final SearcherFactory SEARCHER_FACTORY =
+                                                        new SearcherFactory() {
+        @Override
+        public IndexSearcher newSearcher(final IndexReader reader,
+                                         final IndexReader previousReader) {
+            return newIndexSearcher(reader);
+        }
+    };
+
     private final String name;
     private final String indexPath;
     private final Analyzer analyzer;
+    private final WriterProfile profile;
+    private final boolean nearRealTime;
+    private final double maxStaleSec;
     private IndexWriter writer;
+    private SearcherManager manager;
+    private IndexWriter managerWriter; // writer of the nrt searcher manager
+    private Directory managerDirectory; // directory of the searcher manager
+    private Thread refresher;
+    private long commitWindowMillis;
+    private int maxCommitRequests;
+    private CommitCoordinator coordinator;
 
     public NGIndex(final String name,
                    final String indexPath,
@@ -36,9 +96,42 @@ public class NGIndex {
         this(name, indexPath, new NGAnalyzer(search));
     }
 
+    public NGIndex(final String name,
+                   final String indexPath,
+                   final boolean search,
+                   final WriterProfile profile) throws IOException {
+        this(name, indexPath, new NGAnalyzer(search), profile);
+    }
+
     public NGIndex(final String name,
                    final String indexPath,
                    final Analyzer analyzer) throws IOException {
+        this(name, indexPath, analyzer, WriterProfile.DEFAULT);
+    }
+
+    public NGIndex(final String name,
+                   final String indexPath,
+                   final Analyzer analyzer,
+                   final WriterProfile profile) throws IOException {
+        this(name, indexPath, analyzer, profile, false, DEF_MAX_STALE_SEC);
+    }
+
+    public NGIndex(final String name,
+                   final String indexPath,
+                   final boolean search,
+                   final WriterProfile profile,
+                   final boolean nearRealTime,
+                   final double maxStaleSec) throws IOException {
+        this(name, indexPath, new NGAnalyzer(search), profile, nearRealTime,
+                                                                  maxStaleSec);
+    }
+
+    public NGIndex(final String name,
+                   final String indexPath,
+                   final Analyzer analyzer,
+                   final WriterProfile profile,
+                   final boolean nearRealTime,
+                   final double maxStaleSec) throws IOException {
         if (name == null) {
             throw new NullPointerException("name");
         }
@@ -48,13 +141,49 @@ public class NGIndex {
         if (analyzer == null) {
             throw new NullPointerException("analyzer");
         }
+        if (profile == null) {
+            throw new NullPointerException("profile");
+        }
+        if (maxStaleSec <= 0) {
+            throw new IllegalArgumentException("maxStaleSec <= 0");
+        }
         this.name = name;
         this.indexPath = new File(indexPath).getCanonicalPath();
         this.analyzer = analyzer;
+        this.profile = profile;
+        this.nearRealTime = nearRealTime;
+        this.maxStaleSec = maxStaleSec;
+        this.commitWindowMillis = DEF_COMMIT_WINDOW_MS;
+        this.maxCommitRequests = DEF_MAX_COMMIT_REQUESTS;
         this.writer = getIndexWriter(indexPath, analyzer);        
     }
     
     public void close() {
+        final CommitCoordinator coord;
+        synchronized (this) {
+            coord = coordinator;
+            coordinator = null;
+        }
+        if (coord != null) {
+            coord.close();
+        }
+        synchronized (this) {
+            if (refresher != null) {
+                refresher.interrupt();
+                refresher = null;
+            }
+            if (manager != null) {
+                try {
+                    manager.close();
+                    if (managerDirectory != null) {
+                        managerDirectory.close();
+                    }
+                } catch(IOException ioe) {}
+                manager = null;
+                managerWriter = null;
+                managerDirectory = null;
+            }
+        }
         if (writer != null) {
             try {
                 writer.close();
@@ -79,14 +208,127 @@ public class NGIndex {
         return writer;
     }
 
+    /**
+     * Opens a new searcher that is not shared. The caller should close its
+     * index reader. Prefer acquireSearcher/releaseSearcher.
+     * @return a new index searcher
+     * @throws IOException
+     */
     public IndexSearcher getIndexSearcher() throws IOException {
         return getIndexSearcher(indexPath);
     }
 
+    /**
+     * Gets the shared index searcher. Each call should be paired with a
+     * call to releaseSearcher.
+     * @return the current index searcher
+     * @throws IOException
+     */
+    public IndexSearcher acquireSearcher() throws IOException {
+        return getSearcherManager().acquire();
+    }
+
+    /**
+     * Releases a searcher obtained by acquireSearcher. The searcher should
+     * not be used after this call.
+     * @param searcher index searcher
+     * @throws IOException
+     */
+    public void releaseSearcher(final IndexSearcher searcher)
+                                                            throws IOException {
+        if (searcher == null) {
+            throw new NullPointerException("searcher");
+        }
+        final SearcherManager mgr;
+        synchronized (this) {
+            mgr = manager;
+        }
+        if (mgr == null) {  // index was closed
+            searcher.getIndexReader().decRef();
+        } else {
+            mgr.release(searcher);
+        }
+    }
+
+    /**
+     * Makes the last index changes visible to the next acquired searchers
+     * without waiting for the background refresh.
+     * @throws IOException
+     */
+    public void refreshSearcher() throws IOException {
+        getSearcherManager().maybeRefreshBlocking();
+    }
+
+    /**
+     * Sets the window used to merge commit requests into one commit. The
+     * new values are used by the next commit requests. A window greater than
+     * 0 delays every commit, even with only one caller, so it is only worth
+     * it with many concurrent writers.
+     * @param windowMillis maximum time a commit request waits for other ones
+     * @param maxRequests number of pending requests that forces a commit
+     */
+    public void setCommitWindow(final long windowMillis,
+                                final int maxRequests) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("windowMillis < 0");
+        }
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("maxRequests < 1");
+        }
+        final CommitCoordinator coord;
+        synchronized (this) {
+            commitWindowMillis = windowMillis;
+            maxCommitRequests = maxRequests;
+            coord = coordinator;
+            coordinator = null;
+        }
+        if (coord != null) {
+            coord.close();
+        }
+    }
+
+    /**
+     * Asks for a commit of the changes already sent to the index writer.
+     * Requests of concurrent callers are merged into a single commit.
+     * @return a future completed when the changes are durable
+     */
+    public CompletableFuture<Void> requestCommit() {
+        CompletableFuture<Void> future = null;
+
+        while (future == null) {
+            final CommitCoordinator coord;
+            synchronized (this) {
+                if (coordinator == null) {
+                    coordinator = new CommitCoordinator(this,
+                                        commitWindowMillis, maxCommitRequests);
+                }
+                coord = coordinator;
+            }
+            // null if coord was closed in the meantime
+            future = coord.requestCommit();
+            if (future == null) {
+                synchronized (this) {
+                    if (coordinator == coord) {
+                        coordinator = null;
+                    }
+                }
+            }
+        }
+        return future;
+    }
+
+    public boolean isNearRealTime() {
+        return nearRealTime;
+    }
+
     public Analyzer getAnalyzer() {
         return analyzer;
     }
 
+    public WriterProfile getProfile() {
+        return profile;
+    }
+
     private IndexWriter getIndexWriter(final String indexPath,
                                        final Analyzer analyzer)
                                                             throws IOException {
@@ -102,10 +344,77 @@ public class NGIndex {
         //final IndexWriterConfig cfg = new IndexWriterConfig(Version.LUCENE_40, analyzer);  // Lucene 4.0
         
         cfg.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        if (OVERLAP_SIMILARITY) {
+            cfg.setSimilarity(new OverlapSimilarity());
+        }
+        profile.configure(cfg);
 
         return new IndexWriter(directory, cfg);
     }
 
+    /**
+     * Creates the searcher manager in the first call and recreates it if its
+     * index writer was closed (near real time mode).
+     * @return the shared searcher manager
+     * @throws IOException
+     */
+    private synchronized SearcherManager getSearcherManager()
+                                                            throws IOException {
+        if (nearRealTime) {
+            final IndexWriter iwriter = getIndexWriter();
+            if ((manager == null) || (managerWriter != iwriter)) {
+                if (manager != null) {
+                    manager.close();
+                }
+                manager = new SearcherManager(iwriter, true, false,
+                                                             SEARCHER_FACTORY);
+                managerWriter = iwriter;
+            }
+        } else if (manager == null) {
+            final Directory directory =
+                               new MMapDirectory(new File(indexPath).toPath());
+            try {
+                manager = new SearcherManager(directory, SEARCHER_FACTORY);
+            } catch (IOException ioe) {
+                directory.close();
+                throw ioe;
+            }
+            managerDirectory = directory;
+        }
+        if (refresher == null) {
+            refresher = new Thread(this::refreshLoop, "NGIndex-refresh-" + name);
+            refresher.setDaemon(true);
+            refresher.start();
+        }
+        return manager;
+    }
+
+    /**
+     * Refreshes the shared searcher every maxStaleSec seconds until the index
+     * is closed.
+     */
+    private void refreshLoop() {
+        final long sleepMillis = Math.max(1, (long)(maxStaleSec * 1000));
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(sleepMillis);
+                final SearcherManager mgr;
+                synchronized (this) {
+                    mgr = (managerWriter == null) || managerWriter.isOpen()
+                                                             ? manager : null;
+                }
+                if (mgr != null) {
+                    mgr.maybeRefresh();
+                }
+            } catch (InterruptedException ie) {
+                break;
+            } catch (IOException | RuntimeException ex) {
+                // The manager was closed or replaced. Try again later.
+            }
+        }
+    }
+
     private IndexSearcher getIndexSearcher(final String indexPath)
                                                             throws IOException {
 
@@ -116,7 +425,20 @@ public class NGIndex {
                                //new RAMDirectory(FSDirectory.open(new File(indexPath).toPath()), IOContext.DEFAULT));
                                //new RAMDirectory(FSDirectory.open(new File(indexPath).toPath()), IOContext.READONCE));
 
-        return new IndexSearcher(ireader);
+        return newIndexSearcher(ireader);
+    }
+
+    /**
+     * @param reader index reader
+     * @return a searcher using the similarity of the NGrams searches
+     */
+    private static IndexSearcher newIndexSearcher(final IndexReader reader) {
+        final IndexSearcher searcher = new IndexSearcher(reader);
+
+        if (OVERLAP_SIMILARITY) {
+            searcher.setSimilarity(new OverlapSimilarity());
+        }
+        return searcher;
     }
 
     @Override
@@ -0,0 +1,444 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Builds the ngram query of a normalized text without the QueryParser. The
+ * text is tokenized once by the search analyzer (NGTokenizer) and each
+ * distinct ngram becomes a SHOULD TermQuery clause boosted by its number of
+ * occurrences, what gives the same BM25 scores as the repeated clauses
+ * created by the QueryParser. With OverlapSimilarity the boost is the
+ * maximum number of occurrences of the ngram counted in a document. There is
+ * one builder per thread.
+ *
+ * The query can also require a minimum number of matching ngrams derived
+ * from the lowest similarity threshold (see maxMissing()), so documents
+ * that can not reach it are not even scored, and can be restricted to the
+ * documents whose normalized text length is inside the window where the
+ * similarity threshold can be reached (see lengthFilter()).
+ *
+ * If a stop ratio lower than 1 is given and the minimum number of matching
+ * ngrams is greater than one, the most frequent ngrams (stop ngrams, whose
+ * document frequency is above the ratio of the index documents) do not
+ * count for the minimum, which is decreased by the number of stop ngrams,
+ * keeping at least one. The stop ngrams are kept as optional scoring
+ * clauses outside the minimum, so they are only read for the documents
+ * matched by the other ngrams (their long posting lists are not walked) and
+ * the scores of the documents are the same ones of the complete query.
+ * A document with the minimum number of matching ngrams of the complete
+ * query also has the new minimum of the other ones, so the set of matching
+ * documents only grows. However, the new matching documents compete with
+ * the others for the limited number of top hits examined by the search, so
+ * a candidate of the complete query can still be missed. The minimum of the
+ * complete query can also be checked by a SignatureQuery filter, which
+ * rejects documents whose trigram signature can not have it, before they
+ * are scored.
+ */
+class NGQueryBuilder {
+    private static final ThreadLocal<NGQueryBuilder> BUILDERS =
+                                   ThreadLocal.withInitial(NGQueryBuilder::new);
+
+    /**
+     * Ngram of the indexed field and the number of documents having it.
+     */
+    static class NGramFrequency {
+        final String ngram;
+        final int docFreq;
+
+        NGramFrequency(final String ngram,
+                       final int docFreq) {
+            this.ngram = ngram;
+            this.docFreq = docFreq;
+        }
+    }
+
+    private final Map<String,int[]> ngrams; // ngram -> {occurrences, docFreq}
+                                            // (docFreq of stop ngrams)
+    private final List<Map.Entry<String,int[]>> stopNGrams;
+
+    private NGQueryBuilder() {
+        ngrams = new LinkedHashMap<>();
+        stopNGrams = new ArrayList<>();
+    }
+
+    /**
+     * Maximum number of query ngrams that a document can miss and still have
+     * NGramDistance similarity >= minSimilarity with the query text.
+     *
+     * The query ngrams (NGTokenizer) are disjoint substrings of the text and
+     * the index has all ngrams of the document text. NGramDistance is
+     * 1 - D / max(sl, tl) where D is the cost of an alignment path in which
+     * each text position is consumed by a deletion (cost 1) or a diagonal
+     * step (cost = mismatched chars of the two ngram windows / n). If the
+     * diagonal step of the last position of a query ngram has cost 0, its
+     * window is the ngram itself and it occurs in the document. So each
+     * missing ngram costs at least 1/n on a distinct step and
+     * missing <= n * (D - insertions). As D <= (1 - minSimilarity) *
+     * max(sl, tl) and insertions >= tl - sl, missing <= n * (1 -
+     * minSimilarity) * sl for any document length. Documents shorter than n
+     * are compared char by char (similarity <= (n - 1) / sl), so if they can
+     * pass, no ngram is required.
+     * @param ngramSize ngram size (n)
+     * @param minSimilarity lowest similarity threshold
+     * @param textLength normalized query text length (sl)
+     * @return the maximum number of missing ngrams or -1 if there is no limit
+     */
+    static int maxMissing(final int ngramSize,
+                          final float minSimilarity,
+                          final int textLength) {
+        final int ret;
+
+        if ((minSimilarity <= 0) || (textLength == 0) ||
+                              (ngramSize - 1 >= minSimilarity * textLength)) {
+            ret = -1;
+        } else {
+            // small slack for the float arithmetic of NGramDistance
+            ret = (int)Math.floor(ngramSize * (1 - minSimilarity) * textLength
+                                                                     + 0.001);
+        }
+        return ret;
+    }
+
+    /**
+     * Creates a filter of the documents whose normalized text length (tl)
+     * allows NGramDistance similarity >= minSimilarity with the query text.
+     * Any alignment path needs |sl - tl| insertions or deletions of cost 1,
+     * so similarity <= min(sl, tl) / max(sl, tl) (also true for the char by
+     * char comparison of short texts). So minSimilarity * sl <= tl <=
+     * sl / minSimilarity.
+     * @param fname indexed ngram field name
+     * @param minSimilarity lowest similarity threshold
+     * @param textLength normalized query text length (sl)
+     * @return the length filter or null if there is no restriction
+     */
+    static Query lengthFilter(final String fname,
+                              final float minSimilarity,
+                              final int textLength) {
+        if (fname == null) {
+            throw new NullPointerException("fname");
+        }
+        final Query ret;
+
+        if ((minSimilarity <= 0) || (textLength == 0)) {
+            ret = null;
+        } else {
+            // small slack for the float arithmetic of NGramDistance
+            final int min = (int)Math.ceil(minSimilarity * textLength - 0.001);
+            final double max = textLength / minSimilarity + 0.001;
+
+            ret = IntField.newRangeQuery(fname + NGrams.LENGTH_FLD, min,
+                       (max >= Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int)max);
+        }
+        return ret;
+    }
+
+    /**
+     * Checks if all documents of the index have the length field, what is
+     * not true for indexes created before it was added.
+     * @param reader index reader
+     * @param fname indexed ngram field name
+     * @return true if the length filter can be used
+     * @throws IOException
+     */
+    static boolean hasLengthField(final IndexReader reader,
+                                  final String fname) throws IOException {
+        if (reader == null) {
+            throw new NullPointerException("reader");
+        }
+        if (fname == null) {
+            throw new NullPointerException("fname");
+        }
+        final String lname = fname + NGrams.LENGTH_FLD;
+        boolean ret = true;
+
+        for (final LeafReaderContext context: reader.leaves()) {
+            final LeafReader leaf = context.reader();
+            final PointValues points = leaf.getPointValues(lname);
+
+            if ((points == null) ? (leaf.maxDoc() > 0)
+                                 : (points.getDocCount() < leaf.maxDoc())) {
+                ret = false;
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Creates the ngram query using the builder of the current thread.
+     * @param analyzer search analyzer
+     * @param fname indexed ngram field name
+     * @param ntext normalized text
+     * @param maxMissing maximum number of query ngrams a document can miss
+     *                   or -1 if any matching document is a candidate
+     * @return the ngram query
+     * @throws IOException
+     */
+    static Query build(final Analyzer analyzer,
+                       final String fname,
+                       final String ntext,
+                       final int maxMissing) throws IOException {
+        return build(analyzer, fname, ntext, maxMissing, null, 1, false);
+    }
+
+    /**
+     * Creates the ngram query using the builder of the current thread,
+     * keeping the stop ngrams out of the minimum number of matching ngrams.
+     * @param analyzer search analyzer
+     * @param fname indexed ngram field name
+     * @param ntext normalized text
+     * @param maxMissing maximum number of query ngrams a document can miss
+     *                   or -1 if any matching document is a candidate
+     * @param reader index reader used to get the ngram document frequencies
+     *               or null if no ngram is a stop ngram
+     * @param stopRatio a ngram found in more than stopRatio * maxDoc
+     *                  documents is a stop ngram
+     * @param signatureFilter if true and there are stop ngrams, the query
+     *                        also filters the documents by their trigram
+     *                        signature
+     * @return the ngram query
+     * @throws IOException
+     */
+    static Query build(final Analyzer analyzer,
+                       final String fname,
+                       final String ntext,
+                       final int maxMissing,
+                       final IndexReader reader,
+                       final float stopRatio,
+                       final boolean signatureFilter) throws IOException {
+        if (analyzer == null) {
+            throw new NullPointerException("analyzer");
+        }
+        if (fname == null) {
+            throw new NullPointerException("fname");
+        }
+        if (ntext == null) {
+            throw new NullPointerException("ntext");
+        }
+        return BUILDERS.get().buildQuery(analyzer, fname, ntext, maxMissing,
+                                            reader, stopRatio, signatureFilter);
+    }
+
+    /**
+     * @param reader index reader
+     * @param fname indexed ngram field name
+     * @param size maximum number of ngrams
+     * @return the most frequent ngrams of the indexed field, the most
+     *         frequent first
+     * @throws IOException
+     */
+    static List<NGramFrequency> frequencies(final IndexReader reader,
+                                            final String fname,
+                                            final int size) throws IOException {
+        if (reader == null) {
+            throw new NullPointerException("reader");
+        }
+        if (fname == null) {
+            throw new NullPointerException("fname");
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("size < 1");
+        }
+        final PriorityQueue<NGramFrequency> queue = new PriorityQueue<>(size,
+                                      (f1, f2) -> Integer.compare(f1.docFreq,
+                                                                  f2.docFreq));
+        final Terms terms = MultiTerms.getTerms(reader, fname);
+
+        if (terms != null) {
+            final TermsEnum tenum = terms.iterator();
+            BytesRef term;
+
+            while ((term = tenum.next()) != null) {
+                final int docFreq = tenum.docFreq();
+                if (queue.size() < size) {
+                    queue.add(new NGramFrequency(term.utf8ToString(), docFreq));
+                } else if (docFreq > queue.peek().docFreq) {
+                    queue.poll();
+                    queue.add(new NGramFrequency(term.utf8ToString(), docFreq));
+                }
+            }
+        }
+        final List<NGramFrequency> ret = new ArrayList<>(queue);
+        ret.sort((f1, f2) -> Integer.compare(f2.docFreq, f1.docFreq));
+
+        return ret;
+    }
+
+    private Query buildQuery(final Analyzer analyzer,
+                             final String fname,
+                             final String ntext,
+                             final int maxMissing,
+                             final IndexReader reader,
+                             final float stopRatio,
+                             final boolean signatureFilter) throws IOException {
+        assert analyzer != null;
+        assert fname != null;
+        assert ntext != null;
+
+        ngrams.clear();
+        stopNGrams.clear();
+        try (TokenStream stream = analyzer.tokenStream(fname, ntext)) {
+            final CharTermAttribute termAtt =
+                                   stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                ngrams.computeIfAbsent(termAtt.toString(), k -> new int[2])[0]++;
+            }
+            stream.end();
+        }
+
+        final Query ret;
+
+        if (ngrams.isEmpty()) {
+            ret = new MatchNoDocsQuery("no ngrams in " + fname);
+        } else {
+            final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            Query filter = null;
+
+            // A missing ngram with repeated occurrences in the query counts
+            // once as a clause, so the limit is also valid for the clauses.
+            if (maxMissing >= 0) {
+                final int minMatch = Math.max(0, ngrams.size() - maxMissing);
+                // signature of the complete query, before the removal
+                final int[] counts = (signatureFilter && (minMatch > 1))
+                                   ? signatureCounts() : null;
+                final int removed = (minMatch > 1)
+                                 ? removeStopNGrams(fname, reader, stopRatio,
+                                                                  minMatch - 1)
+                                 : 0;
+                builder.setMinimumNumberShouldMatch(minMatch - removed);
+                if ((counts != null) && (removed > 0)) {
+                    filter = new SignatureQuery(fname + NGrams.SIGNATURE_FLD,
+                                                             counts, minMatch);
+                }
+            }
+            for (final Map.Entry<String,int[]> entry: ngrams.entrySet()) {
+                builder.add(termQuery(fname, entry),
+                                                     BooleanClause.Occur.SHOULD);
+            }
+            if (stopNGrams.isEmpty() && (filter == null)) {
+                ret = builder.build();
+            } else {
+                // The stop ngrams only add their scores to the documents
+                // matched by the other ngrams
+                final BooleanQuery.Builder outer = new BooleanQuery.Builder()
+                                .add(builder.build(), BooleanClause.Occur.MUST);
+                for (final Map.Entry<String,int[]> entry: stopNGrams) {
+                    outer.add(termQuery(fname, entry),
+                                                     BooleanClause.Occur.SHOULD);
+                }
+                if (filter != null) {
+                    outer.add(filter, BooleanClause.Occur.FILTER);
+                }
+                ret = outer.build();
+            }
+            stopNGrams.clear();
+        }
+        return ret;
+    }
+
+    /**
+     * @param fname indexed ngram field name
+     * @param entry ngram and its {occurrences, docFreq}
+     * @return the ngram clause boosted by its number of occurrences
+     */
+    private static Query termQuery(final String fname,
+                                   final Map.Entry<String,int[]> entry) {
+        final int occurrences = entry.getValue()[0];
+        final Query tquery = new TermQuery(new Term(fname, entry.getKey()));
+
+        return (occurrences == 1) ? tquery
+                                  : new BoostQuery(tquery, occurrences);
+    }
+
+    /**
+     * @return the number of query ngrams of each signature bit or null if
+     *         the ngrams are not trigrams
+     */
+    private int[] signatureCounts() {
+        final int[] ret = new int[Long.SIZE];
+
+        for (final String ngram: ngrams.keySet()) {
+            if (ngram.length() != SignatureQuery.NGRAM_SIZE) {
+                return null;
+            }
+            ret[SignatureQuery.bit(ngram)]++;
+        }
+        return ret;
+    }
+
+    /**
+     * Moves the most frequent stop ngrams from the query ngrams to the
+     * stopNGrams list.
+     * @param fname indexed ngram field name
+     * @param reader index reader or null if no ngram is a stop ngram
+     * @param stopRatio a ngram found in more than stopRatio * maxDoc
+     *                  documents is a stop ngram
+     * @param maxRemoved maximum number of ngrams to be removed
+     * @return the number of removed ngrams
+     * @throws IOException
+     */
+    private int removeStopNGrams(final String fname,
+                                 final IndexReader reader,
+                                 final float stopRatio,
+                                 final int maxRemoved) throws IOException {
+        assert fname != null;
+        assert maxRemoved > 0;
+
+        if ((reader == null) || (stopRatio >= 1)) {
+            return 0;
+        }
+        final long maxDocFreq = (long)(Math.max(0, stopRatio) * reader.maxDoc());
+
+        stopNGrams.clear();
+        for (final Map.Entry<String,int[]> entry: ngrams.entrySet()) {
+            final int docFreq = reader.docFreq(new Term(fname, entry.getKey()));
+            if (docFreq > maxDocFreq) {
+                entry.getValue()[1] = docFreq;
+                stopNGrams.add(entry);
+            }
+        }
+        if (stopNGrams.size() > maxRemoved) {
+            stopNGrams.sort((e1, e2) -> Integer.compare(e2.getValue()[1],
+                                                        e1.getValue()[1]));
+        }
+        final int ret = Math.min(maxRemoved, stopNGrams.size());
+
+        stopNGrams.subList(ret, stopNGrams.size()).clear();
+        for (final Map.Entry<String,int[]> entry: stopNGrams) {
+            ngrams.remove(entry.getKey());
+        }
+        return ret;
+    }
+}
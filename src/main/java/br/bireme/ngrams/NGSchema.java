@@ -167,7 +167,8 @@ public class NGSchema {
     }
 
     public String getSchemaXml() {
-        String ret = "<config>";
+        String ret = parameters.docValues ? "<config docValues=\"true\">"
+                                          : "<config>";
 
         for (Score score: parameters.scores) {
             ret += "\n\t<score minValue=\"" + score.minValue + "\" minFields=\"" +
@@ -196,8 +197,8 @@ public class NGSchema {
             ret += "\n\t<regExpField pos=\"" + field.pos + "\" name=\"" +
                 field.name + "\" requiredField=\"" + field.requiredField +
                 "\" match=\"" +
-                field.contentMatch.name() + "\" pattern=\"" + field.matcher.
-                pattern().pattern() + "\" groupNum=\"" + field.groupNum + "\"/>";
+                field.contentMatch.name() + "\" pattern=\"" +
+                field.pattern.pattern() + "\" groupNum=\"" + field.groupNum + "\"/>";
         }
         for (NoCompareField field: parameters.nocompare) {
             ret += "\n\t<noCompField pos=\"" + field.pos + "\" name=\"" +
@@ -10,8 +10,17 @@ package br.bireme.ngrams;
 import java.io.IOException;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.ArrayUtil;
 
 /**
+ * Splits the text into side by side (not overlapping) ngrams. A space
+ * discards the chars read since the last ngram, so no ngram has spaces and
+ * the last chars of each word that do not form an ngram are ignored.
+ * The whole text is read into a buffer when the tokenizer is reset. If the
+ * dual alignment is set, the text is tokenized again, from the buffer,
+ * starting at the position ngramSize - 1.
  *
  * @author Heitor Barbieri
  * date: 20151216
@@ -20,10 +29,21 @@ public class NGTokenizer extends Tokenizer {
     public static final int DEF_NG_SIZE = 3;
 
     private final int ngramSize;
+    private final boolean dualAlignment; // gener tokens two times.
     private final CharTermAttribute termAtt;
-    private boolean doubleTok; // gener tokens two times.
+    private final OffsetAttribute offsetAtt;
+    private final PositionIncrementAttribute posIncAtt;
+    private char[] buffer;   // whole input text
+    private int length;      // number of chars of the buffer
+    private int pos;         // position of the next char to be read
+    private boolean second;  // tokenizing the second alignment
+
+    public NGTokenizer(int ngramSize) {
+        this(ngramSize, false);
+    }
 
-    public NGTokenizer(int ngramSize) {  // current version
+    public NGTokenizer(int ngramSize,
+                       boolean dualAlignment) {  // current version
     //public NGTokenizer(int ngramSize, Reader reader) {  // Lucene 4.0
         super();   // current version
         //super(reader);      // Lucene 4.0
@@ -31,9 +51,12 @@ public class NGTokenizer extends Tokenizer {
             throw new IllegalArgumentException("ngramSize < 1");
         }
         this.ngramSize = ngramSize;
+        this.dualAlignment = dualAlignment;
         termAtt = addAttribute(CharTermAttribute.class);
         termAtt.resizeBuffer(ngramSize);
-        doubleTok = input.markSupported();
+        offsetAtt = addAttribute(OffsetAttribute.class);
+        posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        buffer = new char[256];
     }
 
     public int getNgramSize() {
@@ -41,76 +64,59 @@ public class NGTokenizer extends Tokenizer {
     }
 
     @Override
-    public final boolean incrementToken() throws IOException {
-        clearAttributes();
+    public void reset() throws IOException {
+        super.reset();
 
-        return getNextToken();
-    }
+        int read;
 
-    private boolean getNextToken() throws IOException {
-        termAtt.setEmpty();
-        return getNextToken(0);
+        length = 0;
+        while ((read = input.read(buffer, length, buffer.length - length))
+                                                                       != -1) {
+            length += read;
+            if (length == buffer.length) {
+                buffer = ArrayUtil.grow(buffer, length + 1);
+            }
+        }
+        pos = 0;
+        second = false;
     }
 
-    private boolean getNextToken(final int pos) throws IOException {
-        assert pos >= 0;
-
-        final boolean ret;
-
-        if (pos == ngramSize) {
-            ret = true;
-        } else {
-            final int ich = input.read();
-            if (ich == -1) {
-                if (doubleTok) {
-                    doubleTok = false;
-                    input.reset();
-                    input.skip(ngramSize - 1);  // Replace the initial position of tokenization
-                    ret = getNextToken();
-                } else {
-                    termAtt.setEmpty();
-                    ret = false;
-                }
-            } else {
-                final char ch = (char)ich;
-                if (ch == ' ') {
-                    ret = getNextToken();
+    @Override
+    public final boolean incrementToken() throws IOException {
+        clearAttributes();
+
+        while (true) {
+            int size = 0;
+
+            while ((size < ngramSize) && (pos < length)) {
+                if (buffer[pos++] == ' ') {
+                    size = 0;
                 } else {
-                    termAtt.append(ch);
-                    ret = getNextToken(pos + 1);
+                    size++;
                 }
             }
-        }
-
-        return ret;
-    }
+            if (size == ngramSize) {
+                final int start = pos - ngramSize;
 
-    /*
-    private boolean getNextToken() throws IOException {
-        termAtt.setEmpty();
-        return getNextToken(0, false);
-    }
-    private boolean getNextToken(final int pos,
-                                 final boolean hasNotSpace) throws IOException {
-        assert pos >= 0;
-
-        final boolean ret;
-
-        if (pos == ngramSize) {
-            ret = hasNotSpace ? true : incrementToken();
-        } else {
-            final int ich = input.read();
-            if (ich == -1) {
-                termAtt.setEmpty();
-                ret = false;
+                termAtt.copyBuffer(buffer, start, ngramSize);
+                offsetAtt.setOffset(correctOffset(start), correctOffset(pos));
+                posIncAtt.setPositionIncrement(1);
+                return true;
+            }
+            if (dualAlignment && !second) {
+                second = true;
+                pos = Math.min(ngramSize - 1, length); // Replace the initial position of tokenization
             } else {
-                final char ch = (char)ich;
-                termAtt.append(ch);
-                ret = getNextToken(pos + 1, hasNotSpace || (ch != ' '));
+                return false;
             }
         }
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
 
-        return ret;
+        final int finalOffset = correctOffset(length);
+        offsetAtt.setOffset(finalOffset, finalOffset);
     }
-    */
 }
@@ -0,0 +1,199 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.util.Arrays;
+import org.apache.lucene.search.spell.NGramDistance;
+
+/**
+ * Same n-gram distance (Kondrak) of Lucene NGramDistance, computed with the
+ * same float operations so the results are identical, but without allocating
+ * arrays for each pair of strings: the padded strings and the cost rows are
+ * thread local buffers reused by all calls of the thread. The source string
+ * can also be prepared once and compared with many targets, aborting the
+ * computation when the similarity can not reach a threshold.
+ * Thread safe.
+ */
+class NGramSimilarity extends NGramDistance {
+    /**
+     * Source string padded with the ngram prefix. Can be shared by threads.
+     */
+    static class Source {
+        private final NGramSimilarity similarity;
+        private final String text;
+        private final char[] padded;
+
+        private Source(final NGramSimilarity similarity,
+                       final String text) {
+            assert similarity != null;
+            assert text != null;
+
+            this.similarity = similarity;
+            this.text = text;
+            this.padded = pad(text, new char[0], similarity.n);
+        }
+
+        /**
+         * @param target string to be compared with the source
+         * @param threshold minimum similarity of interest
+         * @return the similarity of the source and the target if it is
+         *         greater or equal to the threshold, otherwise some value
+         *         lower than the threshold
+         */
+        float getDistance(final String target,
+                          final float threshold) {
+            assert target != null;
+
+            return similarity.distance(text, padded, target, threshold);
+        }
+    }
+
+    private static class Buffers {
+        char[] source = new char[0];
+        char[] target = new char[0];
+        float[] prev = new float[0];   // 'previous' cost array, horizontally
+        float[] cur = new float[0];    // cost array, horizontally
+    }
+
+    private static final ThreadLocal<Buffers> BUFFERS =
+                                             ThreadLocal.withInitial(Buffers::new);
+
+    private final int n;
+
+    NGramSimilarity(final int size) {
+        super(size);
+        this.n = size;
+    }
+
+    /**
+     * @param source string to be compared with many targets
+     * @return the prepared source string
+     */
+    Source prepare(final String source) {
+        if (source == null) {
+            throw new NullPointerException("source");
+        }
+        return new Source(this, source);
+    }
+
+    @Override
+    public float getDistance(final String source,
+                             final String target) {
+        final Buffers buffers = BUFFERS.get();
+
+        buffers.source = pad(source, buffers.source, n);
+
+        return distance(source, buffers.source, target,
+                                                      Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Copies a string after the n-1 prefix chars (0) of a buffer.
+     * @param text string to be copied
+     * @param buffer buffer to be reused if it is big enough
+     * @param n ngram size
+     * @return the buffer or a new one if the string does not fit
+     */
+    private static char[] pad(final String text,
+                              final char[] buffer,
+                              final int n) {
+        final int len = text.length() + n - 1;
+        final char[] ret = (buffer.length < len) ? new char[len] : buffer;
+
+        // the buffers are shared by instances of different ngram sizes
+        Arrays.fill(ret, 0, n - 1, (char)0);
+        text.getChars(0, text.length(), ret, n - 1);
+
+        return ret;
+    }
+
+    private float distance(final String source,
+                           final char[] sa,
+                           final String target,
+                           final float threshold) {
+        final int sl = source.length();
+        final int tl = target.length();
+
+        if (sl == 0 || tl == 0) {
+            return (sl == tl) ? 1 : 0;
+        }
+
+        int cost = 0;
+        if (sl < n || tl < n) {
+            for (int i = 0, ni = Math.min(sl, tl); i < ni; i++) {
+                if (source.charAt(i) == target.charAt(i)) {
+                    cost++;
+                }
+            }
+            return (float) cost / Math.max(sl, tl);
+        }
+
+        final int max = Math.max(tl, sl);
+
+        // Every alignment has at least |sl - tl| insertions or deletions
+        final float bound = 1.0f - ((float) Math.abs(sl - tl) / max);
+        if (bound < threshold) {
+            return bound;
+        }
+
+        final Buffers buffers = BUFFERS.get();
+        buffers.target = pad(target, buffers.target, n);
+        if (buffers.prev.length <= sl) {
+            buffers.prev = new float[sl + 1];
+            buffers.cur = new float[sl + 1];
+        }
+        final char[] ta = buffers.target;
+        float[] p = buffers.prev;
+        float[] d = buffers.cur;
+        float[] _d; //placeholder to assist in swapping p and d
+
+        for (int i = 0; i <= sl; i++) {
+            p[i] = i;
+        }
+        for (int j = 1; j <= tl; j++) {
+            float rowMin;
+
+            d[0] = j;
+            rowMin = d[0];
+            for (int i = 1; i <= sl; i++) {
+                int tn = n;
+
+                cost = 0;
+                //compare the ith n-gram of sa to the jth n-gram of ta
+                for (int ni = 0; ni < n; ni++) {
+                    final char sc = sa[i - 1 + ni];
+                    if (sc != ta[j - 1 + ni]) {
+                        cost++;
+                    } else if (sc == 0) { //discount matches on prefix
+                        tn--;
+                    }
+                }
+                final float ec = (float) cost / tn;
+                // minimum of cell to the left+1, to the top+1, diagonally left and up +cost
+                d[i] = Math.min(Math.min(d[i - 1] + 1, p[i] + 1), p[i - 1] + ec);
+                if (d[i] < rowMin) {
+                    rowMin = d[i];
+                }
+            }
+            _d = p;
+            p = d;
+            d = _d;
+
+            // The row minimum never decreases and the final cost is not
+            // lower than it
+            final float rowBound = 1.0f - (rowMin / max);
+            if (rowBound < threshold) {
+                return rowBound;
+            }
+        }
+
+        // our last action in the above loop was to switch d and p, so p now
+        // actually has the most recent cost counts
+        return 1.0f - (p[sl] / max);
+    }
+}
@@ -7,9 +7,8 @@
 
 package br.bireme.ngrams;
 
-import br.bireme.ngrams.Field.Status;
-
 //import com.fasterxml.jackson.databind.ObjectMapper;
+import tools.jackson.core.JacksonException;
 import tools.jackson.databind.ObjectMapper;
 
 //import com.github.vickumar1981.stringdistance.util.StringDistance;
@@ -17,6 +16,7 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.nio.charset.Charset;
 import java.nio.charset.MalformedInputException;
@@ -24,33 +24,30 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.GregorianCalendar;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.text.StringEscapeUtils;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.Field.Store;
-import org.apache.lucene.document.StoredField;
-import org.apache.lucene.document.StringField;
-import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 //import org.apache.lucene.index.MultiFields;  // older Lucene version
 import org.apache.lucene.index.MultiBits;    // newer Lucene version
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
@@ -59,6 +56,7 @@ import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.spell.NGramDistance;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRefHash;
 import org.xml.sax.SAXException;
 
 /**
@@ -76,23 +74,27 @@ public class NGrams {
         public final float score;
         public final String compare;
         public final ArrayList<CheckFieldResult> resltList;
+        final String idPair;  // key of the (search doc, index doc) pair
 
         Result(final String[] param,
                final Document doc,
                final float similarity,
                final float score,
-               final ArrayList<CheckFieldResult> resltList) {
+               final ArrayList<CheckFieldResult> resltList,
+               final String idPair) {
             assert param != null;
             assert doc != null;
             assert similarity >= 0;
             assert score >= 0;
             assert resltList != null;
+            assert idPair != null;
 
             this.param = param;
             this.doc = doc;
             this.similarity = similarity;
             this.score = score;
             this.resltList = resltList;
+            this.idPair = idPair;
             this.compare = similarity + "_" + doc.get(DatabaseField.FNAME) + "_"
                                                        + doc.get(IdField.FNAME);
         }
@@ -115,15 +117,80 @@ public class NGrams {
     */
     public static final String NOT_NORMALIZED_FLD = "~notnormalized";
 
+    /*
+      Suffix name of the indexed field with the normalized content length of
+      the IndexedNGramField.
+    */
+    public static final String LENGTH_FLD = "~length";
+
+    /*
+      Suffix name of the doc values fields with the comparison data (schema
+      docValues option).
+    */
+    public static final String DOC_VALUES_FLD = "~dv";
+
+    /*
+      Suffix name of the doc values field with the trigram signature of the
+      normalized content of the IndexedNGramField.
+    */
+    public static final String SIGNATURE_FLD = "~sig";
+
     /*
        String delimiter of repetitive occurrences
     */
     public static final String OCC_SEPARATOR = "//@//";
 
     /*
-      Available charsets
+       If true, the search query requires the minimum number of matching
+       ngrams that a document needs to reach the lowest similarity score.
+       Use -Dngrams.noMinShouldMatch=true to compare with the previous
+       behavior.
+    */
+    public static final boolean MIN_SHOULD_MATCH =
+                                  !Boolean.getBoolean("ngrams.noMinShouldMatch");
+
+    /*
+       If true, the search only considers documents whose indexed text length
+       allows them to reach the lowest similarity score. Indexes without the
+       length field are not filtered. Use -Dngrams.noLengthFilter=true to
+       compare with the previous behavior.
+    */
+    public static final boolean LENGTH_FILTER =
+                                     !Boolean.getBoolean("ngrams.noLengthFilter");
+
+    /*
+       An ngram found in more than this ratio of the index documents is a stop
+       ngram. Stop ngrams do not count for the minimum number of matching
+       ngrams of the search query and only add their scores to the documents
+       matched by the other ngrams (see NGQueryBuilder). More documents match,
+       so a candidate can be pushed out of the examined top hits. Disabled by
+       default (1). Use -Dngrams.stopNgramRatio=0.1 to enable it.
     */
-    private static final Charset UTF8 = Charset.availableCharsets().get("UTF-8");
+    public static final float STOP_NGRAM_RATIO =
+                    Float.parseFloat(System.getProperty("ngrams.stopNgramRatio",
+                                                                         "1"));
+
+    /*
+       If true and the search query has stop ngrams, the candidates are also
+       filtered by the trigram signature of their indexed text, checking the
+       minimum number of matching ngrams of the complete query. Use
+       -Dngrams.noSignatureFilter=true to compare with the previous behavior.
+    */
+    public static final boolean SIGNATURE_FILTER =
+                                  !Boolean.getBoolean("ngrams.noSignatureFilter");
+
+    /*
+       Default number of ngrams shown by the frequencies command
+    */
+    public static final int DEF_FREQUENCY_TABLE_SIZE = 100;
+
+    /*
+       Json mapper of json2pipe (thread safe, so shared by all calls),
+       created on the first call and not when the class is loaded
+    */
+    private static final class MapperHolder {
+        static final ObjectMapper MAPPER = new ObjectMapper();
+    }
 
     // <id>|<ngram index/search text>|<content>|...|<content>
     public static void index(final NGIndex index,
@@ -145,6 +212,8 @@ public class NGrams {
 
         final Charset charset = Charset.forName(inFileEncoding);
         final IndexWriter writer = index.getIndexWriter();
+        final Parameters parameters = schema.getParameters();
+        final DocumentTemplate template = parameters.plan.newTemplate();
         int cur = 0;
 
         writer.deleteAll();
@@ -166,16 +235,325 @@ public class NGrams {
                 if (line == null) {
                     break;
                 }
-                final boolean ret = indexDocument(index, writer, schema, line, true, false);
+                final boolean ret = indexDocument(writer, parameters, template,
+                                                          line, true, false);
                 if (ret && (++cur % 100000 == 0)) {
                     System.out.println(">>> " + cur);
                 }
             }
+            optimize(index, writer);
+        }
+    }
+
+    /**
+     * Commits the indexed documents and merges the index segments down to the
+     * number of final segments of the index writer profile, reporting the
+     * number of segments and the time spent.
+     * @param index Lucene index
+     * @param writer index writer
+     * @throws IOException
+     */
+    static void optimize(final NGIndex index,
+                         final IndexWriter writer) throws IOException {
+        assert index != null;
+        assert writer != null;
+
+        final int finalSegments = index.getProfile().getFinalSegments();
+        long startTime = new GregorianCalendar().getTimeInMillis();
+
+        writer.commit();
+        final int segments = SegmentInfos.readLatestCommit(
+                                                 writer.getDirectory()).size();
+        System.out.println("Commit time: " + (new GregorianCalendar()
+            .getTimeInMillis() - startTime) + "ms - segments: " + segments);
+
+        if ((finalSegments > 0) && (segments > finalSegments)) {
+            startTime = new GregorianCalendar().getTimeInMillis();
+            writer.forceMerge(finalSegments); // optimize index
             writer.commit();
-            writer.forceMerge(1); // optimize index
+            System.out.println("Merge time: " + (new GregorianCalendar()
+                .getTimeInMillis() - startTime) + "ms - segments: " +
+                 SegmentInfos.readLatestCommit(writer.getDirectory()).size());
+        }
+    }
+
+    /**
+     * Indexes the input file using a pool of worker threads. If numThreads is
+     * 1 and it is not a fresh build, the single threaded version is used.
+     * @param index Lucene index
+     * @param schema index schema
+     * @param inFile input piped file
+     * @param inFileEncoding input file character encoding
+     * @param numThreads number of indexing threads
+     * @param freshBuild if true, documents are only added (no update by id)
+     *                   and documents with duplicated ids are skipped
+     * @throws IOException
+     */
+    public static void index(final NGIndex index,
+                             final NGSchema schema,
+                             final String inFile,
+                             final String inFileEncoding,
+                             final int numThreads,
+                             final boolean freshBuild) throws IOException {
+        if ((numThreads <= 1) && !freshBuild) {
+            index(index, schema, inFile, inFileEncoding);
+        } else {
+            BulkIndexer.index(index, schema, inFile, inFileEncoding,
+                                          Math.max(1, numThreads), freshBuild);
         }
     }
 
+    /**
+     * Applies a change file to an existing index with only one commit at the
+     * end. Each line of the change file has an operation column followed by a
+     * piped document:
+     * <op>|<id>|<ngram index/search text>|<content>|...|<content>
+     * where op is 'add', 'update' or 'delete'. Documents are identified by
+     * their database and id fields. Delete lines only need the database and
+     * id fields. Invalid lines are reported and skipped.
+     * @param index Lucene index
+     * @param schema index schema
+     * @param inFile change file
+     * @param inFileEncoding change file character encoding
+     * @throws IOException
+     */
+    public static void indexDelta(final NGIndex index,
+                                  final NGSchema schema,
+                                  final String inFile,
+                                  final String inFileEncoding)
+                                                            throws IOException {
+        if (index == null) {
+            throw new NullPointerException("index");
+        }
+        if (schema == null) {
+            throw new NullPointerException("schema");
+        }
+        if (inFile == null) {
+            throw new NullPointerException("inFile");
+        }
+        if (inFileEncoding == null) {
+            throw new NullPointerException("inFileEncoding");
+        }
+
+        final Charset charset = Charset.forName(inFileEncoding);
+        final IndexWriter writer = index.getIndexWriter();
+        final Parameters parameters = schema.getParameters();
+        final DocumentTemplate template = parameters.plan.newTemplate();
+        int lineNumber = 0;
+        int added = 0;
+        int updated = 0;
+        int deleted = 0;
+        int invalid = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(
+                                          new File(inFile).toPath(), charset)) {
+            while (true) {
+                final String line;
+                lineNumber++;
+                try {
+                    line = reader.readLine();
+                } catch (final MalformedInputException mie) {
+                    System.err.println("Line with another encoding. Line number:"
+                                                                 + lineNumber);
+                    invalid++;
+                    continue;
+                }
+                if (line == null) {
+                    break;
+                }
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final int sep = line.indexOf('|');
+                final String op = (sep == -1) ? ""
+                                 : line.substring(0, sep).trim().toLowerCase();
+                final String pipedDoc = (sep == -1) ? ""
+                                                    : line.substring(sep + 1);
+                final Document doc;
+                final String dbId;
+
+                try {
+                    if (op.equals("add") || op.equals("update")) {
+                        doc = pipe2Document(parameters, template, pipedDoc);
+                        dbId = (doc == null) ? null : doc.get("db_id");
+                    } else if (op.equals("delete")) {
+                        final PipedRecord record =
+                                          PipedRecord.parseDocument(pipedDoc);
+                        final int maxPos = Math.max(parameters.db.pos,
+                                                    parameters.id.pos);
+                        if (record.size() <= maxPos) {
+                            throw new IOException("missing database or id field");
+                        }
+                        doc = null;
+                        dbId = dbIdKey(record.get(parameters.db.pos),
+                                       record.get(parameters.id.pos));
+                    } else {
+                        throw new IOException("invalid operation: [" + op + "]");
+                    }
+                    if (dbId == null) {
+                        throw new IOException("empty document");
+                    }
+                } catch (final IOException ioe) {
+                    System.err.println("Invalid line. Line number:" + lineNumber
+                                                       + " - " + ioe.getMessage());
+                    invalid++;
+                    continue;
+                }
+                if (doc == null) {
+                    writer.deleteDocuments(new Term("db_id", dbId));
+                    deleted++;
+                } else if (op.equals("add")) {
+                    writer.addDocument(doc);
+                    added++;
+                } else {
+                    writer.updateDocument(new Term("db_id", dbId), doc);
+                    updated++;
+                }
+                if ((added + updated + deleted) % 100000 == 0) {
+                    System.out.println(">>> " + (added + updated + deleted));
+                }
+            }
+        }
+        writer.commit();
+        System.out.println("Added: " + added + " - updated: " + updated +
+                     " - deleted: " + deleted + " - invalid lines: " + invalid);
+    }
+
+    /**
+     * Indexes a file of json objects, one per line (NDJSON). The object
+     * properties are mapped onto the schema fields by name and the Lucene
+     * documents are created directly from them, without the conversion into
+     * piped documents. Invalid records are reported and skipped. As the index
+     * is cleared first, documents are only added (no delete by id term) and
+     * the ones with an already indexed id are reported and skipped.
+     * @param index Lucene index
+     * @param schema index schema
+     * @param inFile input NDJSON file
+     * @param inFileEncoding input file character encoding
+     * @throws IOException
+     */
+    public static void indexJson(final NGIndex index,
+                                 final NGSchema schema,
+                                 final String inFile,
+                                 final String inFileEncoding)
+                                                            throws IOException {
+        if (index == null) {
+            throw new NullPointerException("index");
+        }
+        if (schema == null) {
+            throw new NullPointerException("schema");
+        }
+        if (inFile == null) {
+            throw new NullPointerException("inFile");
+        }
+        if (inFileEncoding == null) {
+            throw new NullPointerException("inFileEncoding");
+        }
+
+        final Charset charset = Charset.forName(inFileEncoding);
+        final IndexWriter writer = index.getIndexWriter();
+
+        writer.deleteAll();
+        writer.commit();
+
+        try (BufferedReader reader = Files.newBufferedReader(
+                                          new File(inFile).toPath(), charset)) {
+            indexJsonRecords(writer, schema.getParameters(), reader,
+                                                   new BytesRefHash(), true);
+        }
+        optimize(index, writer);
+    }
+
+    /**
+     * Indexes (adds or updates by id) json objects, one per line (NDJSON),
+     * and commits them.
+     * @param schema index schema
+     * @param index Lucene index
+     * @param ndjson json objects
+     * @throws IOException
+     */
+    public static void indexJsonDocuments(final NGSchema schema,
+                                          final NGIndex index,
+                                          final String ndjson)
+                                                            throws IOException {
+        if (schema == null) {
+            throw new NullPointerException("schema");
+        }
+        if (index == null) {
+            throw new NullPointerException("index");
+        }
+        if (ndjson == null) {
+            throw new NullPointerException("ndjson");
+        }
+
+        final IndexWriter writer = index.getIndexWriter();
+
+        indexJsonRecords(writer, schema.getParameters(),
+                                          new StringReader(ndjson), null, false);
+        writer.commit();
+    }
+
+    /**
+     * Creates and indexes a Lucene document for each json object of the input.
+     * @param writer index writer
+     * @param parameters schema parameters
+     * @param reader json objects input
+     * @param ids already indexed ids if the index was just cleared (fresh
+     *            build): documents are only added and the ones with
+     *            duplicated ids are skipped. If null, documents are added or
+     *            updated by id
+     * @param showProgress if the number of indexed documents should be
+     *                     printed periodically
+     * @return number of indexed documents
+     * @throws IOException
+     */
+    private static int indexJsonRecords(final IndexWriter writer,
+                                        final Parameters parameters,
+                                        final Reader reader,
+                                        final BytesRefHash ids,
+                                        final boolean showProgress)
+                                                            throws IOException {
+        assert writer != null;
+        assert parameters != null;
+        assert reader != null;
+
+        final DocumentTemplate template = parameters.plan.newTemplate();
+        int cur = 0;
+
+        try (JsonRecordReader records = new JsonRecordReader(parameters,
+                                                                     reader)) {
+            while (true) {
+                final String[] fields;
+                try {
+                    fields = records.next();
+                } catch (final IOException ioe) {
+                    System.err.println("Invalid record. Line number:" +
+                              records.getLineNumber() + " - " + ioe.getMessage());
+                    continue;
+                }
+                if (fields == null) {
+                    break;
+                }
+                final Document doc = template.fill(fields);
+
+                if (ids == null) {
+                    writer.updateDocument(new Term("id",
+                                             fields[parameters.id.pos]), doc);
+                } else if (BulkIndexer.checkId(ids, doc)) {
+                    writer.addDocument(doc);
+                } else {
+                    continue;
+                }
+                if (showProgress && (++cur % 100000 == 0)) {
+                    System.out.println(">>> " + cur);
+                }
+            }
+        } catch (final JacksonException je) {
+            throw new IOException("Invalid json: " + je.getOriginalMessage(), je);
+        }
+        return cur;
+    }
+
     public static void indexDocuments(final NGSchema schema,
                                       final NGIndex index,
                                       final String multiLinePipedDoc)
@@ -191,10 +569,12 @@ public class NGrams {
         }
 
         final IndexWriter writer = index.getIndexWriter();
+        final Parameters parameters = schema.getParameters();
+        final DocumentTemplate template = parameters.plan.newTemplate();
         final String[] pipedDoc = multiLinePipedDoc.trim().split(" *\n *");
 
         for (final String line: pipedDoc) {
-            indexDocument(index, writer, schema, line, true, false);
+            indexDocument(writer, parameters, template, line, true, false);
         }
         writer.commit();
     }
@@ -218,46 +598,190 @@ public class NGrams {
         if (pipedDoc == null) {
             throw new NullPointerException("pipedDoc");
         }
-        boolean ret = false;
-        final String pipedDocT = pipedDoc.trim();
-        if (!isUtf8Encoding(pipedDocT)) {
-            throw new IOException("Invalid encoded string");
-        }
-        if (! pipedDocT.isEmpty()) {
-            final Parameters parameters = schema.getParameters();
-            final int occs = Tools.countOccurrences(pipedDoc, '|');
-            if (occs < parameters.maxIdxFieldPos) {
-                throw new IOException("invalid number of fields: [" + pipedDoc + "] countOccurrences=" + occs + " < maxIdxFieldPos=" + parameters.maxIdxFieldPos);
+        final Parameters parameters = schema.getParameters();
+        final boolean ret = indexDocument(writer, parameters,
+                 parameters.plan.newTemplate(), pipedDoc, allowDocUpdate, false);
+
+        if (ret && commit) {
+            if (writer == index.getIndexWriter()) {
+                awaitCommit(index.requestCommit()); // group commit
+            } else {
+                writer.commit();
             }
-            final String pipedDoc2 = StringEscapeUtils.unescapeHtml4(pipedDocT);
-            final String[] split = pipedDoc2.replace(':', ' ').trim()
-                                           .split(" *\\| *", Integer.MAX_VALUE);
+        }
+        return ret;
+    }
+
+    /**
+     * Indexes a piped document and asks for a group commit of it without
+     * waiting for the commit. Concurrent callers share the same commit.
+     * @param index Lucene index
+     * @param schema index schema
+     * @param pipedDoc piped document
+     * @param allowDocUpdate if true, the document with the same id is replaced
+     * @return a future completed with true when the document is durable or
+     *         with false if the piped document is empty
+     * @throws IOException if the piped document is not a valid one
+     */
+    public static CompletableFuture<Boolean> indexDocumentAsync(
+                                           final NGIndex index,
+                                           final NGSchema schema,
+                                           final String pipedDoc,
+                                           final boolean allowDocUpdate)
+                                                            throws IOException {
+        if (index == null) {
+            throw new NullPointerException("index");
+        }
+        if (schema == null) {
+            throw new NullPointerException("schema");
+        }
+        if (pipedDoc == null) {
+            throw new NullPointerException("pipedDoc");
+        }
+        final Parameters parameters = schema.getParameters();
+        final boolean indexed = indexDocument(index.getIndexWriter(), parameters,
+                 parameters.plan.newTemplate(), pipedDoc, allowDocUpdate, false);
+
+        return indexed ? index.requestCommit().thenApply(v -> true)
+                       : CompletableFuture.completedFuture(false);
+    }
+
+    /**
+     * Waits for a group commit.
+     * @param future future returned by NGIndex.requestCommit()
+     * @throws IOException if the commit failed
+     */
+    private static void awaitCommit(final CompletableFuture<Void> future)
+                                                            throws IOException {
+        assert future != null;
+
+        try {
+            future.get();
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ie);
+        } catch (final ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            throw (cause instanceof IOException) ? (IOException)cause
+                                                 : new IOException(cause);
+        }
+    }
+
+    /**
+     * Indexes a piped document using a reusable document template.
+     * @param writer index writer
+     * @param parameters schema parameters
+     * @param template document template of the current thread
+     * @param pipedDoc piped document
+     * @param allowDocUpdate if true, the document with the same id is replaced
+     * @param commit if true, the index writer is committed
+     * @return true if the document was indexed, false if it is empty
+     * @throws IOException if the piped document is not a valid one
+     */
+    static boolean indexDocument(final IndexWriter writer,
+                                 final Parameters parameters,
+                                 final DocumentTemplate template,
+                                 final String pipedDoc,
+                                 final boolean allowDocUpdate,
+                                 final boolean commit) throws IOException {
+        assert writer != null;
+        assert parameters != null;
+        assert template != null;
+        assert pipedDoc != null;
+
+        boolean ret = false;
+        final String[] split = splitPipedDoc(parameters, pipedDoc);
+        if (split != null) {
             final String id = split[parameters.id.pos];
-            if (id.isEmpty()) {
-                throw new IOException("id");
-            }
-            final String dbName = split[parameters.db.pos];
-            if (dbName.isEmpty()) {
-                throw new IOException("dbName");
-            }
-            final Map<String,br.bireme.ngrams.Field> flds = parameters.nameFields;
-            final Document doc = createDocument(flds, split);
+            final Document doc = template.fill(split);
 
-            if (doc != null) {
-                if (allowDocUpdate) {
-                    writer.updateDocument(new Term("id", id), doc);
-                } else {
-                    writer.addDocument(doc);
-                }
-                if (commit) {
-                  writer.commit();
-                }
-                ret = true;
+            if (allowDocUpdate) {
+                writer.updateDocument(new Term("id", id), doc);
+            } else {
+                writer.addDocument(doc);
             }
+            if (commit) {
+              writer.commit();
+            }
+            ret = true;
         }
         return ret;
     }
 
+    /**
+     * Converts a piped document into a Lucene document.
+     * @param schema index schema
+     * @param pipedDoc piped document
+     * @return the Lucene document or null if the piped document is empty
+     * @throws IOException if the piped document is not a valid one
+     */
+    static Document pipe2Document(final NGSchema schema,
+                                  final String pipedDoc) throws IOException {
+        assert schema != null;
+        assert pipedDoc != null;
+
+        final Parameters parameters = schema.getParameters();
+        final String[] split = splitPipedDoc(parameters, pipedDoc);
+
+        return (split == null) ? null : parameters.plan.createDocument(split);
+    }
+
+    /**
+     * Converts a piped document into a Lucene document using a reusable
+     * document template. The returned document is only valid until the next
+     * use of the template.
+     * @param parameters schema parameters
+     * @param template document template of the current thread
+     * @param pipedDoc piped document
+     * @return the Lucene document or null if the piped document is empty
+     * @throws IOException if the piped document is not a valid one
+     */
+    static Document pipe2Document(final Parameters parameters,
+                                  final DocumentTemplate template,
+                                  final String pipedDoc) throws IOException {
+        assert parameters != null;
+        assert template != null;
+        assert pipedDoc != null;
+
+        final String[] split = splitPipedDoc(parameters, pipedDoc);
+
+        return (split == null) ? null : template.fill(split);
+    }
+
+    /**
+     * Splits a piped document into its fields checking its content.
+     * @param parameters schema parameters
+     * @param pipedDoc piped document
+     * @return the document fields or null if the piped document is empty
+     * @throws IOException if the piped document is not a valid one
+     */
+    private static String[] splitPipedDoc(final Parameters parameters,
+                                          final String pipedDoc)
+                                                            throws IOException {
+        assert parameters != null;
+        assert pipedDoc != null;
+
+        if (pipedDoc.trim().isEmpty()) {
+            return null;
+        }
+        final PipedRecord record = PipedRecord.parseDocument(pipedDoc);
+        final int occs = record.getRawPipes();
+        if (occs < parameters.maxIdxFieldPos) {
+            throw new IOException("invalid number of fields: [" + pipedDoc + "] countOccurrences=" + occs + " < maxIdxFieldPos=" + parameters.maxIdxFieldPos);
+        }
+        if (record.size() <= parameters.maxIdxFieldPos) {
+            throw new IOException("invalid number of fields: [" + pipedDoc + "]");
+        }
+        final String[] split = record.toArray();
+        if (split[parameters.id.pos].isEmpty()) {
+            throw new IOException("id");
+        }
+        if (split[parameters.db.pos].isEmpty()) {
+            throw new IOException("dbName");
+        }
+        return split;
+    }
+
     public static void deleteDocument(final String id,
                                       final NGIndex index) throws IOException {
         if (id == null) {
@@ -304,9 +828,9 @@ public class NGrams {
         final Parameters parameters = schema.getParameters();
         final String indexFldName = parameters.db.name;
         final String idFldName = parameters.id.name;
-        final ObjectMapper mapper = new ObjectMapper();
-        final Map<String,Object> userData = mapper.readValue(sjson, Map.class);
-        final StringBuilder ret = new StringBuilder();
+        final Map<String,Object> userData =
+                                 MapperHolder.MAPPER.readValue(sjson, Map.class);
+        final String[] fields = new String[parameters.maxIdxFieldPos + 1];
         final Map<Integer,br.bireme.ngrams.Field> sfields = parameters.sfields;
 
         userData.put(indexFldName, indexName);
@@ -315,133 +839,51 @@ public class NGrams {
         for (int idx = 0; idx <= parameters.maxIdxFieldPos; idx++) {
             final br.bireme.ngrams.Field fld =  sfields.get(idx);
 
-            ret.append((idx == 0) ? "" : "|");
             if (fld != null) {
                 final Object obj = userData.get(fld.name);
                 if (obj != null) {
                     if (obj instanceof String) {
-                        ret.append((String) obj);
+                        fields[idx] = (String) obj;
                     } else if (obj instanceof Number) {
-                        ret.append(obj);
+                        fields[idx] = obj.toString();
                     } else if (obj instanceof List) {
+                        final StringBuilder builder = new StringBuilder();
                         boolean first = true;
                         for (final Object obj2: (List<Object>)obj) {
                             if (first) {
                                 first = false;
                             } else {
-                                ret.append(OCC_SEPARATOR);
+                                builder.append(OCC_SEPARATOR);
                             }
-                            ret.append((String)obj2);
+                            builder.append((String)obj2);
                         }
+                        fields[idx] = builder.toString();
                     } else {
                         throw new IOException("Illegal json format:" + sjson);
                     }
                 }
             }
         }
-        return ret.toString();
-    }
-
-    private static Document createDocument(
-                               final Map<String, br.bireme.ngrams.Field> fields,
-                               final String[] flds) throws IOException {
-        assert fields != null;
-        assert flds != null;
-
-        Document doc = new Document();
-        String dbName = null;
-        String id = null;
-
-        final Set<String> names = new HashSet<>();
-        for (final br.bireme.ngrams.Field fld : fields.values()) {
-            final String content = flds[fld.pos];
-            final String fname = fld.name;
-            if (fld instanceof IndexedNGramField) {
-                if (names.contains(fname)) {
-                    doc = null;
-                    break;
-                }
-                final String ncontent = Tools.limitSize(
-                    Tools.normalize(content, OCC_SEPARATOR), MAX_NG_TEXT_SIZE)
-                                                                     .trim();
-                doc.add(new TextField(fname, ncontent, Field.Store.YES));
-                doc.add(new StoredField(fname + NOT_NORMALIZED_FLD,
-                                                           content.trim()));
-            } else if (fld instanceof DatabaseField) {
-                if (names.contains(fname)) {
-                    doc = null;
-                    break;
-                }
-                dbName = Tools.limitSize(
-                         Tools.normalize(content, OCC_SEPARATOR),
-                                                   MAX_NG_TEXT_SIZE).trim();
-                doc.add(new StringField(fname, dbName, Field.Store.YES));
-                doc.add(new StoredField(fname + NOT_NORMALIZED_FLD,
-                                                           content.trim()));
-            } else if (fld instanceof IdField) {
-                if (names.contains(fname)) {
-                    doc = null;
-                    break;
-                }
-                id = Tools.limitSize(
-                         Tools.normalize(content, OCC_SEPARATOR),
-                                                   MAX_NG_TEXT_SIZE).trim();
-                doc.add(new StringField(fname, id, Field.Store.YES));
-                doc.add(new StoredField(fname + NOT_NORMALIZED_FLD,
-                                                           content.trim()));
-            } else if (fld instanceof AuthorsField) {
-                if (names.contains(fname)) {
-                    doc = null;
-                    break;
-                }
-                doc.add(new StoredField(fname + NOT_NORMALIZED_FLD,
-                                                           content.trim()));
-                final String[] authors = Tools.normalize2(content, OCC_SEPARATOR);
-                if (authors != null) {
-                    final int len = authors.length;
-                    for (int idx = 0; idx < len; idx++) {
-                        doc.add(new StoredField(fname, authors[idx]));
-                    }
-                }
-            } else {
-                final String ncontent = Tools.limitSize(
-                         Tools.normalize(content, OCC_SEPARATOR),
-                                                   MAX_NG_TEXT_SIZE).trim();
-                doc.add(new StoredField(fname, ncontent));
-                doc.add(new StoredField(fname + NOT_NORMALIZED_FLD,
-                                                           content.trim()));
-            }
-            names.add(fname);
-        }
-        // Add field to avoid duplicated documents in the index
-        if (dbName == null) {
-            throw new IOException("dbName");
-        }
-        if (id == null) {
-            throw new IOException("id");
-        }
-        if (doc != null) {
-            doc.add(new StringField("db_id",
-                          Tools.normalize(dbName + "_" + id, OCC_SEPARATOR),
-                                                                Store.YES));
-        }
-
-        return doc;
+        return PipedRecord.join(fields);
     }
 
     /**
-     * Checks is the string encoding is utf-8.
-     * @param text input text to check the encoding
-     * @return if the input text encoding is utf-8
+     * @param dbName database field content (not normalized)
+     * @param id id field content (not normalized)
+     * @return the content of the db_id field of a document with these
+     *         database and id fields
      */
-    private static boolean isUtf8Encoding(final String text) {
-        assert text != null;
+    private static String dbIdKey(final String dbName,
+                                  final String id) {
+        assert dbName != null;
+        assert id != null;
 
-        //final Charset utf8 = Charset.availableCharsets().get("UTF-8");
-        final byte[] b1 = text.getBytes(UTF8) ;
-        final byte[] b2 = new String(b1, UTF8).getBytes(UTF8);
+        final String dbNameN = Tools.limitSize(
+                Tools.normalize(dbName, OCC_SEPARATOR), MAX_NG_TEXT_SIZE).trim();
+        final String idN = Tools.limitSize(
+                Tools.normalize(id, OCC_SEPARATOR), MAX_NG_TEXT_SIZE).trim();
 
-        return java.util.Arrays.equals(b1, b2);
+        return Tools.normalize(dbNameN + "_" + idN, OCC_SEPARATOR);
     }
 
     /**
@@ -486,35 +928,19 @@ public class NGrams {
         }
         final Charset inCharset = Charset.forName(inFileEncoding);
         final Charset outCharset = Charset.forName(outFileEncoding);
-        final IndexSearcher searcher = index.getIndexSearcher();
+        final IndexSearcher searcher = index.acquireSearcher();
         final NGAnalyzer analyzer = (NGAnalyzer)index.getAnalyzer();
         final Parameters parameters = schema.getParameters();
-        final NGramDistance ngDistance = new NGramDistance(
+        final NGramDistance ngDistance = new NGramSimilarity(
                                                        analyzer.getNgramSize());
-        final Set<String> id_id = new HashSet<>();
+        final Set<String> id_id = ConcurrentHashMap.newKeySet();
         int cur = 0;
         try (final BufferedReader reader = Files.newBufferedReader(
                                           new File(inFile).toPath(), inCharset);
              final BufferedWriter writer = Files.newBufferedWriter(
                                       new File(outFile).toPath(), outCharset)) {
 
-            if (report) {
-                final StringBuilder sb = new StringBuilder();
-                boolean first = true;
-                for (br.bireme.ngrams.Field fld: parameters.getSearchFields().values()) {
-                    if (first) first = false;
-                    else sb.append("|");
-                    sb.append(fld.name).append("_1").append("|");
-                    sb.append(fld.name).append("_2").append("|");
-                    sb.append(fld.name).append("_similarity").append("|");
-                    sb.append(fld.name).append("_veridict");
-                }
-                writer.append(sb.toString());
-            } else {
-                writer.append("rank|similarity|search_doc_id|index_doc_id|" +
-                    "ngram_search_text|ngram_index_text|search_source|" +
-                                                              "index_source");
-            }
+            writeHeader(parameters, writer, report);
 
             final List<Result> results = new ArrayList<>();
             while (true) {
@@ -527,20 +953,89 @@ public class NGrams {
                 }
 
                 results.clear();
-                final String tline = line.replace(':', ' ').trim();
-                if (!tline.isEmpty()) {
-                    final String[] split = tline.split(" *\\| *", Integer.MAX_VALUE);
-                    if (split.length != parameters.nameFields.size()) {
+                final PipedRecord record = PipedRecord.parseQuery(line, true,
+                                                     parameters.maxIdxFieldPos);
+                if (!record.isEmpty()) {
+                    if (record.getRawPipes() + 1 != parameters.nameFields.size()) {
                         throw new IOException("invalid number of fields: " + line);
                     }
                     searchRaw(parameters, searcher, analyzer, ngDistance,
-                                        tline, true, selfCheck, id_id, results);
+                                       record, true, selfCheck, id_id, results);
                     if (!results.isEmpty()) {
                         writeOutput(parameters, results, writer, report);
                     }
                 }
             }
-            searcher.getIndexReader().close();
+        } finally {
+            index.releaseSearcher(searcher);
+        }
+    }
+
+    /**
+     * Searches the lines of the input file using a pool of worker threads.
+     * The results are written in the order of the input lines and are the
+     * same of the single threaded version. If numThreads is 1, the single
+     * threaded version is used.
+     * @param index Lucene index
+     * @param schema index schema
+     * @param inFile input piped file
+     * @param inFileEncoding input file character encoding
+     * @param outFile output file
+     * @param outFileEncoding output file character encoding
+     * @param report if true, the output is the complete version
+     * @param selfCheck if true, pairs of documents already found are skipped
+     * @param numThreads number of search threads
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static void search(final NGIndex index,
+                              final NGSchema schema,
+                              final String inFile,
+                              final String inFileEncoding,
+                              final String outFile,
+                              final String outFileEncoding,
+                              final boolean report,
+                              final boolean selfCheck,
+                              final int numThreads) throws IOException,
+                                                                ParseException {
+        if (numThreads <= 1) {
+            search(index, schema, inFile, inFileEncoding, outFile,
+                                       outFileEncoding, report, selfCheck);
+        } else {
+            BatchSearcher.search(index, schema, inFile, inFileEncoding, outFile,
+                               outFileEncoding, report, selfCheck, numThreads);
+        }
+    }
+
+    /**
+     * Writes the first line of the search output file.
+     * @param parameters schema parameters
+     * @param writer output file writer
+     * @param report if true, the output is the complete version
+     * @throws IOException
+     */
+    static void writeHeader(final Parameters parameters,
+                            final BufferedWriter writer,
+                            final boolean report) throws IOException {
+        assert parameters != null;
+        assert writer != null;
+
+        if (report) {
+            final StringBuilder sb = new StringBuilder();
+            boolean first = true;
+            for (br.bireme.ngrams.Field fld: parameters.getSearchFields().values()) {
+                if (first) first = false;
+                else sb.append("|");
+                sb.append(fld.name).append("_1").append("|");
+                sb.append(fld.name).append("_2").append("|");
+                sb.append(fld.name).append("_similarity").append("|");
+                sb.append(fld.name).append("_veridict");
+            }
+            writer.append(sb.toString());
+        } else {
+            writer.append("rank|similarity|search_doc_id|index_doc_id|" +
+                "ngram_search_text|ngram_index_text|search_source|" +
+                                                          "index_source");
         }
     }
 
@@ -559,24 +1054,25 @@ public class NGrams {
         if (text == null) {
             throw new NullPointerException("text");
         }
-        final IndexSearcher searcher = index.getIndexSearcher();
+        final IndexSearcher searcher = index.acquireSearcher();
         final NGAnalyzer analyzer = (NGAnalyzer)index.getAnalyzer();
         final Parameters parameters = schema.getParameters();
-        final NGramDistance ngDistance = new NGramDistance(
+        final NGramDistance ngDistance = new NGramSimilarity(
                                                        analyzer.getNgramSize());
-        final Set<String> id_id = new HashSet<>();
+        final Set<String> id_id = ConcurrentHashMap.newKeySet();
         final List<Result> results = new ArrayList<>();
 
-        final String ttext = text.replace(':', ' ').trim();
-        final String[] split = ttext.split(" *\\| *", Integer.MAX_VALUE);
-        if (split.length != parameters.nameFields.size()) {
-            throw new IOException("invalid number of fields: " + text);
-        }
-
-        searchRaw(parameters, searcher, analyzer, ngDistance, ttext, true,
+        try {
+            final PipedRecord record = PipedRecord.parseQuery(text, true,
+                                                     parameters.maxIdxFieldPos);
+            if (record.getRawPipes() + 1 != parameters.nameFields.size()) {
+                throw new IOException("invalid number of fields: " + text);
+            }
+            searchRaw(parameters, searcher, analyzer, ngDistance, record, true,
                                                     selfCheck, id_id, results);
-
-        searcher.getIndexReader().close();
+        } finally {
+            index.releaseSearcher(searcher);
+        }
 
         return report ? result2PipeReport(parameters, results)
                         : results2pipeFull(parameters, results);
@@ -598,24 +1094,25 @@ public class NGrams {
         if (text == null) {
             throw new NullPointerException("text");
         }
-        final IndexSearcher searcher = index.getIndexSearcher();
+        final IndexSearcher searcher = index.acquireSearcher();
         final NGAnalyzer analyzer = (NGAnalyzer)index.getAnalyzer();
         final Parameters parameters = schema.getParameters();
-        final NGramDistance ngDistance = new NGramDistance(
+        final NGramDistance ngDistance = new NGramSimilarity(
                                                        analyzer.getNgramSize());
-        final Set<String> id_id = new HashSet<>();
+        final Set<String> id_id = ConcurrentHashMap.newKeySet();
         final List<Result> results = new ArrayList<>();
 
-        final String ttext = text.replace(':', ' ').trim();
-        final String[] split = ttext.split(" *\\| *", Integer.MAX_VALUE);
-        if (split.length != parameters.nameFields.size()) {
-            throw new IOException("invalid number of fields: " + text);
-        }
-
-        searchRaw(parameters, searcher, analyzer, ngDistance, ttext, false,
+        try {
+            final PipedRecord record = PipedRecord.parseQuery(text, true,
+                                                     parameters.maxIdxFieldPos);
+            if (record.getRawPipes() + 1 != parameters.nameFields.size()) {
+                throw new IOException("invalid number of fields: " + text);
+            }
+            searchRaw(parameters, searcher, analyzer, ngDistance, record, false,
                                                      selfCheck, id_id, results);
-
-        searcher.getIndexReader().close();
+        } finally {
+            index.releaseSearcher(searcher);
+        }
 
         return report ? result2PipeReport(parameters, results)
                         : results2pipeFull(parameters, results);
@@ -635,23 +1132,28 @@ public class NGrams {
         if (text == null) {
             throw new NullPointerException("text");
         }
-        final IndexSearcher searcher = index.getIndexSearcher();
+        final IndexSearcher searcher = index.acquireSearcher();
         final NGAnalyzer analyzer = (NGAnalyzer)index.getAnalyzer();
         final Parameters parameters = schema.getParameters();
-        final NGramDistance ngDistance = new NGramDistance(
+        final NGramDistance ngDistance = new NGramSimilarity(
                                                        analyzer.getNgramSize());
-        final Set<String> id_id = new HashSet<>();
+        final Set<String> id_id = ConcurrentHashMap.newKeySet();
         final List<Result> results = new ArrayList<>();
-        final String ttext = text.replace(':', ' ').trim();
-
-        searchRaw(parameters, searcher, analyzer, ngDistance, ttext, true,
+        try {
+            final PipedRecord record = PipedRecord.parseQuery(text, true,
+                                                     parameters.maxIdxFieldPos);
+            searchRaw(parameters, searcher, analyzer, ngDistance, record, true,
                                                      selfCheck, id_id, results);
-        searcher.getIndexReader().close();
+        } finally {
+            index.releaseSearcher(searcher);
+        }
 
         return results2json(parameters, results);
     }
 
     // <id>|<ngram search text>|<content>|...|<content>
+    // Can be called by concurrent threads. If they share id_id, it should be
+    // a concurrent set (ConcurrentHashMap.newKeySet()).
     public static void searchRaw(final Parameters parameters,
                                  final IndexSearcher searcher,
                                  final NGAnalyzer analyzer,
@@ -673,31 +1175,33 @@ public class NGrams {
             throw new NullPointerException("text");
         }
 
-        final String text2 = StringEscapeUtils.unescapeHtml4(text).trim();
-        
-        final long count = text2.chars().filter(ch -> ch == '|').count();
-        String[] param;
-        if (parameters.maxIdxFieldPos == count) {
-            param = text2.trim().split(" *\\| *", Integer.MAX_VALUE);  // Avoid problems with string starting with "
-        } else {
-            final List<CSVRecord> records = CSVFormat.EXCEL.withDelimiter('|')
-                    .parse(new StringReader(text2.trim())).getRecords();
-            if (records.isEmpty()) {
-                throw new IOException(text);
-            }
-            final CSVRecord record = records.get(0);
-            final int size = record.size();
-            
-            param = new String[size];
+        searchRaw(parameters, searcher, analyzer, ngDistance,
+                  PipedRecord.parseQuery(text, false, parameters.maxIdxFieldPos),
+                                 useSimilarity, selfCheck, id_id, results);
+    }
 
-            for (int i = 0; i < size; i++) {
-                param[i] = record.get(i);
-            }
-        }
-        
-        if (param.length < parameters.nameFields.size()) {
-            throw new IOException(text);
+    static void searchRaw(final Parameters parameters,
+                          final IndexSearcher searcher,
+                          final NGAnalyzer analyzer,
+                          final NGramDistance ngDistance,
+                          final PipedRecord record,
+                          final boolean useSimilarity,
+                          final boolean selfCheck,
+                          final Set<String> id_id,
+                          final List<Result> results)
+                                            throws IOException, ParseException {
+        assert parameters != null;
+        assert searcher != null;
+        assert analyzer != null;
+        assert ngDistance != null;
+        assert record != null;
+        assert id_id != null;
+        assert results != null;
+
+        if (record.size() < parameters.nameFields.size()) {
+            throw new IOException(PipedRecord.join(record.toArray()));
         }
+        final String[] param = record.toArray();
 
         final String ntext = Tools.limitSize(Tools.normalize(
                                  param[parameters.indexed.pos], OCC_SEPARATOR),
@@ -706,75 +1210,147 @@ public class NGrams {
 
         if (!ntext.isEmpty()) {
             final String fname = parameters.indexed.name;
-            final QueryParser parser = new QueryParser(fname, analyzer); // current version
-            //final QueryParser parser = new QueryParser(Version.LUCENE_40, fname, analyzer);   // Lucene 4.0
-            String escaped = QueryParser.escape(ntext);
-            final Query query = parser.parse(escaped);
-            final TopDocs top = searcher.search(query, MAX_RESULTS);
             final float lower = parameters.scores.last().minValue;
+            final int maxMissing = (useSimilarity && MIN_SHOULD_MATCH)
+                 ? NGQueryBuilder.maxMissing(analyzer.getNgramSize(), lower,
+                                                             ntext.length())
+                 : -1;
+            final Query ngQuery = NGQueryBuilder.build(analyzer, fname, ntext,
+                           maxMissing, searcher.getIndexReader(), STOP_NGRAM_RATIO,
+                                                             SIGNATURE_FILTER);
+            final Query lengthFilter = (useSimilarity && LENGTH_FILTER &&
+                 NGQueryBuilder.hasLengthField(searcher.getIndexReader(), fname))
+                 ? NGQueryBuilder.lengthFilter(fname, lower, ntext.length())
+                 : null;
+            final Query query = (lengthFilter == null) ? ngQuery
+                : new BooleanQuery.Builder()
+                                .add(ngQuery, BooleanClause.Occur.MUST)
+                                .add(lengthFilter, BooleanClause.Occur.FILTER)
+                                .build();
+            final TopDocs top = searcher.search(query, MAX_RESULTS);
             final ScoreDoc[] scores = top.scoreDocs;
+            final FieldHandler.Probe[] probes = parameters.plan.prepare(param);
+            final StoredFields storedFields = searcher.storedFields();
+            final SingleFieldVisitor visitor = new SingleFieldVisitor(fname);
+            final DocValuesReader dvReader = DocValuesReader.create(
+                                        searcher.getIndexReader(), parameters);
+            final NGramSimilarity.Source source =
+                                       (ngDistance instanceof NGramSimilarity)
+                             ? ((NGramSimilarity)ngDistance).prepare(ntext)
+                             : null;
+            final String[] dnames = (useSimilarity && (dvReader != null))
+                ? dvReader.indexedValues(scores,
+                                         Math.min(scores.length, MAX_RESULTS))
+                : null;
+            final ScoreDoc[] candidates = new ScoreDoc[scores.length];
+            final float[] similarities = new float[scores.length];
             int remaining = MAX_RESULTS;
+            int current = 0;
+            int count = 0;  // number of candidates
 
+            // Selects the documents whose fields are compared
             for (final ScoreDoc sdoc : scores) {
                 if (remaining-- <= 0) {
                     break;  // Only for performance
                 }
-                final Document doc = searcher.storedFields().document(sdoc.doc);
                 if (useSimilarity) {
-                    final String dname = doc.get(fname);
+                    // Loads only the indexed field. The whole document is
+                    // loaded only if its similarity passes the threshold.
+                    String dname = (dnames == null) ? null : dnames[current];
+                    current++;
+                    if (dname == null) {
+                        visitor.reset();
+                        storedFields.document(sdoc.doc, visitor);
+                        dname = visitor.getValue();
+                    }
                     if (dname == null) {
                         throw new IOException("dname");
                     }
-                    final float similarity = ngDistance.getDistance(ntext, dname);
+                    final float similarity = (source == null)
+                                      ? ngDistance.getDistance(ntext, dname)
+                                      : source.getDistance(dname, lower);
                     if (similarity < lower) {
                         if (remaining > 3) {
                             remaining = 3;
                             //System.out.println("Atualizando tot=" + tot + " score=" + sdoc.score + " similarity=" + similarity+ " text=" + doc.get(fname));
                         }
                     } else {
-                        final Result out = createResult(id_id, parameters, param,
-                            doc, ngDistance, similarity, sdoc.score, selfCheck);
-                        if (out != null) {
-                            results.add(out);
-                        }
+                        candidates[count] = sdoc;
+                        similarities[count++] = similarity;
                     }
                 } else {
-                    if (sdoc.score < 1.0) {
+                    // Only for performance. The cut is for BM25 scores, the
+                    // OverlapSimilarity scores are fractions of the ngrams.
+                    if (!(searcher.getSimilarity() instanceof OverlapSimilarity)
+                                                      && (sdoc.score < 1.0)) {
                         System.out.println("Saindo score=" + sdoc.score);
-                        break;    // Only for performance
-                    }
-                    final Result out = createResult(id_id, parameters,
-                             param, doc, ngDistance, 0, sdoc.score, selfCheck);
-                    if (out != null) {
-                        results.add(out);
+                        break;
                     }
+                    candidates[count] = sdoc;
+                    similarities[count++] = 0;
+                }
+            }
+
+            // The doc values of the candidates are read at once, in the
+            // document id order
+            final FieldHandler.Values[][] values;
+            if (dvReader == null) {
+                values = null;
+            } else {
+                final int[] docIDs = new int[count];
+                for (int idx = 0; idx < count; idx++) {
+                    docIDs[idx] = candidates[idx].doc;
+                }
+                values = dvReader.comparisonValues(docIDs);
+            }
+            for (int idx = 0; idx < count; idx++) {
+                final Result out = createResult(id_id, parameters, param,
+                        probes, (values == null) ? null : values[idx],
+                        storedFields, candidates[idx].doc, ngDistance,
+                        similarities[idx], candidates[idx].score, selfCheck);
+                if (out != null) {
+                    results.add(out);
                 }
             }
         }
     }
 
     // <search doc id>|<similarity>|<index doc id>|<ngram search text>|<ngram index text>|<matches>(<possible matches>)
-    private static synchronized Result createResult(final Set<String> id_id,
-                                                    final Parameters parameters,
-                                                    final String[] param,
-                                                    final Document doc,
-                                                    final NGramDistance ngDistance,
-                                                    final float similarity,
-                                                    final float score,
-                                                    final boolean selfCheck) {
+    // Thread safe if id_id is a concurrent set.
+    // The fields are compared using the doc values contents (if values is not
+    // null). Otherwise they are compared using the stored fields. With doc
+    // values, the stored fields are only loaded to create the result.
+    private static Result createResult(final Set<String> id_id,
+                                       final Parameters parameters,
+                                       final String[] param,
+                                       final FieldHandler.Probe[] probes,
+                                       final FieldHandler.Values[] values,
+                                       final StoredFields storedFields,
+                                       final int docID,
+                                       final NGramDistance ngDistance,
+                                       final float similarity,
+                                       final float score,
+                                       final boolean selfCheck)
+                                                            throws IOException {
         assert id_id != null;
         assert parameters != null;
         assert param != null;
-        assert doc != null;
+        assert probes != null;
+        assert storedFields != null;
         assert ngDistance != null;
         assert similarity >= 0;
         assert score >= 0;
 
+        final Document doc = (values == null) ? storedFields.document(docID)
+                                              : null;
+        final FieldHandler.Values[] fvalues = (values == null)
+                                      ? parameters.plan.values(doc) : values;
+
         final String id1 = param[parameters.id.pos];
-        final String id2 = doc.get("id");
+        final String id2 = fvalues[parameters.id.pos].normalized;
         final String idb1 = id1 + "_" + Tools.normalize(param[parameters.db.pos],
                                                                  OCC_SEPARATOR);
-        final String idb2 = id2 + "_" + doc.get("database");
+        final String idb2 = id2 + "_" + fvalues[parameters.db.pos].normalized;
         final String id1id2 = (idb1.compareTo(idb2) <= 0) ? (idb1 + "_" + idb2)
                                                           : (idb2 + "_" + idb1);
         final Result ret;
@@ -785,14 +1361,25 @@ public class NGrams {
             int matchedFields = 0;
             boolean maxScore = false;
             boolean denyDup = false;
-            final Collection<br.bireme.ngrams.Field> fields =
-                                                 parameters.sfields.values();
-            final ArrayList<CheckFieldResult> resltList = new ArrayList<>();
-
-            for (final br.bireme.ngrams.Field fld: fields) {
-                final CheckFieldResult result =
-                             checkField(similarity, ngDistance, fld, param, doc);
-                resltList.add(result);
+            boolean rejected = false;
+            final SchemaPlan plan = parameters.plan;
+            final FieldHandler[] order = plan.checkOrder;
+            final CheckFieldResult[] checked = new CheckFieldResult[order.length];
+
+            // The cheaper fields are compared first. Stops when the document
+            // is already rejected, so all fields of an accepted document are
+            // compared.
+            for (int idx = 0; idx < order.length; idx++) {
+                if (!checkScore(parameters, similarity,
+                             matchedFields + plan.matchable[idx], maxScore)) {
+                    rejected = true;  // even if all other fields match
+                    break;
+                }
+                final FieldHandler handler = order[idx];
+                final int pos = handler.field.pos;
+                final CheckFieldResult result = handler.check(similarity,
+                                           ngDistance, probes[pos], fvalues[pos]);
+                checked[pos] = result;
 
                 switch(result.condition) {
                     case NOT_SIMILAR:
@@ -807,12 +1394,17 @@ public class NGrams {
                     default:
                         matchedFields += 1;
                 }
+                if (denyDup) {
+                    break;
+                }
             }
-            if (denyDup) {
+            if (denyDup || rejected) {
                 ret = null;
-            } else if (checkScore(parameters, similarity, matchedFields, maxScore)) {
-                id_id.add(id1id2);
-                ret = new NGrams.Result(param, doc, similarity, score, resltList);
+            } else if (checkScore(parameters, similarity, matchedFields, maxScore)
+                                        && (id_id.add(id1id2) || !selfCheck)) {
+                ret = new NGrams.Result(param, (doc == null)
+                                 ? storedFields.document(docID) : doc, similarity,
+                      score, new ArrayList<>(Arrays.asList(checked)), id1id2);
             } else {
                 ret = null;
             }
@@ -827,7 +1419,7 @@ public class NGrams {
                                       final boolean maxScore) {
         assert parameters != null;
         assert similarity >= 0;
-        assert matchedFields > 0;
+        assert matchedFields >= 0;
 
         Score score = null;
         for (final Score score1 : parameters.scores) {
@@ -1025,324 +1617,16 @@ public class NGrams {
         assert param != null;
         assert doc != null;
 
-        final CheckFieldResult ret;
-
-        final String text = param[field.pos].trim();
-        if (field instanceof IndexedNGramField) {
-            ret = compareIndexedNGramFields(similarity, field, text, doc);
-        } else if (field instanceof NGramField) {
-            ret = compareNGramFields(ngDistance, field, text, doc);
-        } else if (field instanceof DiceField) {
-            ret = compareDiceFields(ngDistance, field, text, doc);    
-        } else if (field instanceof RegExpField) {
-            ret = compareRegExpFields(field, text, doc);
-        } else if (field instanceof ExactField) {
-            ret = compareExactFields(field, text, doc);
-        } else if (field instanceof AuthorsField) {
-            ret = compareAuthorFields(field, text, doc);
-        } else {
-            final String fldText = doc.get(field.name + NOT_NORMALIZED_FLD);
-            ret = new CheckFieldResult(field.name, text, fldText, Condition.IGNORE,
-                                         ngDistance.getDistance(text, fldText));
-        }
-
-        return ret;
-    }
-
-    private static CheckFieldResult compareIndexedNGramFields(final float similarity,
-                                                              final br.bireme.ngrams.Field field,
-                                                              final String text,
-                                                              final Document doc) {
-        assert field != null;
-        assert text != null;
-        assert doc != null;
-
-        final String fldText = doc.get(field.name + NOT_NORMALIZED_FLD);
+        final FieldHandler handler = FieldHandler.create(field);
 
-        return new CheckFieldResult(field.name, text, fldText,
-                                                  Condition.IGNORE, similarity);
+        return handler.check(similarity, ngDistance,
+                 handler.prepare(param[field.pos].trim()), handler.values(doc));
     }
 
-    private static CheckFieldResult compareNGramFields(final NGramDistance ngDistance,
-                                                       final br.bireme.ngrams.Field field,
-                                                       final String text,
-                                                       final Document doc) {
-        assert ngDistance != null;
-        assert field != null;
-        assert text != null;
-        assert doc != null;
-
-        final CheckFieldResult ret;
-        final String normFldText = doc.get(field.name);
-        final String fldText = doc.get(field.name + NOT_NORMALIZED_FLD);
-        final String normText = Tools.limitSize(
-                Tools.normalize(text, OCC_SEPARATOR),MAX_NG_TEXT_SIZE).trim();
-        final float similarity = ngDistance.getDistance(normFldText, normText);
-        final boolean passed = !normFldText.isEmpty() &&
-                               (similarity >= ((NGramField)field).minScore);
-
-        if (passed) {
-            ret = new CheckFieldResult(field.name, text, fldText,
-                                                 Condition.SIMILAR, similarity);
-        } else if (field.contentMatch == Status.DENY_DUP) {
-            ret = new CheckFieldResult(field.name, text, fldText,
-                                             Condition.DENY_DUP, similarity);
-        } else {
-            ret = new CheckFieldResult(field.name, text, fldText,
-                                             Condition.NOT_SIMILAR, similarity);
-        }
-
-        return ret;
-    }
-    
-    private static CheckFieldResult compareDiceFields(final NGramDistance ngDistance,
-                                                      final br.bireme.ngrams.Field field,
-                                                      final String text,
-                                                      final Document doc) {
-        assert ngDistance != null;
-        assert field != null;
-        assert text != null;
-        assert doc != null;
-
-        final CheckFieldResult ret;
-        final String normFldText = doc.get(field.name);
-        final String fldText = doc.get(field.name + NOT_NORMALIZED_FLD);
-        final String normText = Tools.limitSize(
-                Tools.normalize(text, OCC_SEPARATOR),MAX_NG_TEXT_SIZE).trim();
-        final float similarity = (float)DiceCoefficient.diceCoefficientOptimized(normFldText, normText);
-        final boolean passed = !normFldText.isEmpty() &&
-                               (similarity >= ((DiceField)field).minScore);
-
-        if (passed) {
-            ret = new CheckFieldResult(field.name, text, fldText,
-                                                 Condition.SIMILAR, similarity);
-        } else if (field.contentMatch == Status.DENY_DUP) {
-            ret = new CheckFieldResult(field.name, text, fldText,
-                                             Condition.DENY_DUP, similarity);
-        } else {
-            ret = new CheckFieldResult(field.name, text, fldText,
-                                             Condition.NOT_SIMILAR, similarity);
-        }
-
-        return ret;
-    }
-
-    private static CheckFieldResult compareRegExpFields(final br.bireme.ngrams.Field field,
-                                                        final String text,
-                                                        final Document doc) {
-        assert field != null;
-        assert text != null;
-        assert doc != null;
-
-        final CheckFieldResult ret;
-        final String normFldText = doc.get(field.name);
-        final String fldText = doc.get(field.name + NOT_NORMALIZED_FLD);
-        final String normText = Tools.limitSize(
-                Tools.normalize(text, OCC_SEPARATOR),MAX_NG_TEXT_SIZE).trim();
-        final RegExpField regExp = (RegExpField)field;
-        final Matcher mat = regExp.matcher;
-        String content1 = null;
-        String content2 = null;
-
-        mat.reset(normFldText);
-        if (mat.find()) {
-            content1 = mat.group(regExp.groupNum);
-            content1 = (content1 == null) ? "" : content1.trim();
-        }
-        mat.reset(normText);
-        if (mat.find()) {
-            content2 = mat.group(regExp.groupNum);
-            content2 = (content2 == null) ? "" : content2.trim();
-        }
-
-        switch (compareFields(field, content1, content2)) {
-            case -3:
-                ret = new CheckFieldResult(field.name, text, fldText,
-                                                         Condition.DENY_DUP, 0);
-                break;
-            case -2:
-                ret = new CheckFieldResult(field.name, text, fldText,
-                                                        Condition.MAX_SCORE, 0);
-                break;
-            case -1:
-                ret = new CheckFieldResult(field.name, text, fldText,
-                                                      Condition.NOT_SIMILAR, 0);
-                break;
-            case 0:
-                ret = new CheckFieldResult(field.name, text, fldText,
-                                                           Condition.IGNORE, 0);
-                break;
-            default:
-                ret = new CheckFieldResult(field.name, text, fldText,
-                                                          Condition.SIMILAR, 1);
-        }
-
-        return ret;
-    }
-
-    private static CheckFieldResult compareExactFields(final br.bireme.ngrams.Field field,
-                                                       final String text,
-                                                       final Document doc) {
-        assert field != null;
-        assert text != null;
-        assert doc != null;
-
-        final CheckFieldResult ret;
-        final String normFldText = doc.get(field.name);
-        final String fldText = doc.get(field.name + NOT_NORMALIZED_FLD);
-        final String normText = Tools.limitSize(
-                Tools.normalize(text, OCC_SEPARATOR),MAX_NG_TEXT_SIZE).trim();
-
-        switch (compareFields(field, normText, normFldText)) {
-            case -3:
-                    ret = new CheckFieldResult(field.name, text, fldText,
-                                                        Condition.DENY_DUP, 0);
-                    break;
-            case -2:
-                ret = new CheckFieldResult(field.name, text, fldText,
-                                                        Condition.MAX_SCORE, 0);
-                break;
-            case -1:
-                ret = new CheckFieldResult(field.name, text, fldText,
-                                                      Condition.NOT_SIMILAR, 0);
-                break;
-            case 0:
-                ret = new CheckFieldResult(field.name, text, fldText,
-                                                           Condition.IGNORE, 0);
-                break;
-            default:
-                ret = new CheckFieldResult(field.name, text, fldText,
-                                                          Condition.SIMILAR, 1);
-            }
-
-        return ret;
-    }
-
-    private static CheckFieldResult compareAuthorFields(final br.bireme.ngrams.Field field,
-                                                        final String text,
-                                                        final Document doc) {
-        assert field != null;
-        assert text != null;
-        assert doc != null;
-
-        final String[] normTextAuthors = Tools.normalize2(text, OCC_SEPARATOR);
-        final String[] normFldAuthors = doc.getValues(field.name);
-        final String fldAuthors = Tools.mkString(
-                doc.getValues(field.name + NOT_NORMALIZED_FLD), OCC_SEPARATOR);
-        final boolean maxValue = (field.contentMatch == Status.MAX_SCORE);
-        final boolean denyDup = (field.contentMatch == Status.DENY_DUP);
-        final CheckFieldResult ret;
-
-        if ((normTextAuthors.length > 0) && (normFldAuthors.length > 0)) {
-            final Set<String> authorSet = new HashSet<>();
-
-            for (String fldAuthor: normFldAuthors) {
-                final String au = fldAuthor.trim();
-                if (!au.isEmpty()) authorSet.add(au);
-            }
-            boolean found = true;
-            for (String author: normTextAuthors) {
-                final String aut = author.trim();
-                if ((!aut.isEmpty()) && (!authorSet.isEmpty())) { // Do not remove
-                    if (!checkAuthor(aut, authorSet)) {
-                        found = false;
-                        break;
-                    }
-                }
-            }
-            if (found) {
-                final float sym = (float)
-                     DiceCoefficient.diceCoefficientOptimized(text, fldAuthors);
-                if (sym < 0.75) {
-                    if (denyDup) {
-                        ret = new CheckFieldResult(field.name, text, fldAuthors,
-                                                       Condition.DENY_DUP, sym);
-                    } else {
-                        ret = new CheckFieldResult(field.name, text, fldAuthors,
-                                                    Condition.NOT_SIMILAR, sym);
-                    }
-                } else {
-                    ret = new CheckFieldResult(field.name, text, fldAuthors,
-                                                        Condition.SIMILAR, sym);
-                }
-            } else {
-                if (denyDup) {
-                    ret = new CheckFieldResult(field.name, text, fldAuthors,
-                                               Condition.DENY_DUP, 0);
-                } else {
-                    ret = new CheckFieldResult(field.name, text, fldAuthors,
-                     maxValue ? Condition.MAX_SCORE : Condition.NOT_SIMILAR, 0);
-                }
-            }
-        } else {
-            if (denyDup) {
-                ret = new CheckFieldResult(field.name, "", "",
-                                                         Condition.DENY_DUP, 0);
-            } else {
-                ret = new CheckFieldResult(field.name, "", "",
-                     maxValue ? Condition.MAX_SCORE : Condition.NOT_SIMILAR, 0);
-            }
-        }
-
-        return ret;
-    }
-
-    private static boolean checkAuthor(String author,
-                                       Set<String> authors) {
-        final double THRESHOLD = 0.4;
-        String moreSimilar = null;
-        double similarity = THRESHOLD;
-
-        for (String aut: authors) {
-            final Double diceCoefficient = DiceCoefficient.diceCoefficientOptimized(author, aut);
-//System.out.println("\t\tdiceCoefficient=" + diceCoefficient);
-            if (diceCoefficient >= similarity) {
-                similarity = diceCoefficient;
-                moreSimilar = aut;
-            }
-        }
-        final boolean ret = (moreSimilar != null);
-        if (ret) authors.remove(moreSimilar);
-
-        return ret;
-    }
-
-    /**
-     *
-     * @param field - configuration of the document
-     * @param fld - text used to search
-     * @param text - txt from index
-     * @return -3 : fields dont match and contentMatch is DENY_DUP
-     *         -2 : fields dont match and contentMatch is MAX_SCORE
-     *         -1 : fields dont match and contentMatch is required
-     *          0 : ignore this field
-     *          1 : fields match
-     */
-    private static int compareFields(final br.bireme.ngrams.Field field,
-                                     final String fld,
-                                     final String text) {
-        assert field != null;
-
-        final int ret;
-        final String xfld = (fld == null) ? "" : fld.trim();
-        final String xtext = (text == null) ? "" : text.trim();
-
-        if (xfld.equals(xtext)) {
-            ret = xfld.isEmpty() ? 0 : 1;
-        } else {
-            if (xfld.isEmpty() || xtext.isEmpty()) ret = 0;
-            else if (field.contentMatch == Status.DENY_DUP) ret = -3;
-            else if (field.contentMatch == Status.MAX_SCORE) ret = -2;
-            else ret = -1;
-        }
-
-        return ret;
-    }
-
-    private static void writeOutput(final Parameters parameters,
-                                    final List<Result> results,
-                                    final BufferedWriter writer,
-                                    final boolean report)
+    static void writeOutput(final Parameters parameters,
+                            final List<Result> results,
+                            final BufferedWriter writer,
+                            final boolean report)
                                                             throws IOException {
         assert parameters != null;
         assert results != null;
@@ -1367,6 +1651,49 @@ public class NGrams {
         }
     }
 
+    /**
+     * Prints the most frequent ngrams of the indexed field and their
+     * document frequencies. The stop ngrams (see STOP_NGRAM_RATIO) are marked.
+     * @param index NGrams index
+     * @param schema NGrams schema
+     * @param size maximum number of ngrams
+     * @throws IOException
+     */
+    public static void frequencies(final NGIndex index,
+                                   final NGSchema schema,
+                                   final int size) throws IOException {
+        if (index == null) {
+            throw new NullPointerException("index");
+        }
+        if (schema == null) {
+            throw new NullPointerException("schema");
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("size < 1");
+        }
+        final IndexSearcher searcher = index.acquireSearcher();
+
+        try {
+            final IndexReader reader = searcher.getIndexReader();
+            final int maxDoc = reader.maxDoc();
+            final long maxDocFreq = (long)(STOP_NGRAM_RATIO * maxDoc);
+            int pos = 0;
+
+            System.out.println("documents=" + maxDoc + " stop ratio=" +
+                                                             STOP_NGRAM_RATIO);
+            for (final NGQueryBuilder.NGramFrequency freq:
+                        NGQueryBuilder.frequencies(reader,
+                                      schema.getParameters().indexed.name, size)) {
+                System.out.println((++pos) + ") [" + freq.ngram + "] docFreq=" +
+                    freq.docFreq + " ratio=" + ((float)freq.docFreq / maxDoc) +
+                    (((STOP_NGRAM_RATIO < 1) && (freq.docFreq > maxDocFreq))
+                                                                ? " stop" : ""));
+            }
+        } finally {
+            index.releaseSearcher(searcher);
+        }
+    }
+
     public static void export(final NGIndex index,
                               final NGSchema schema,
                               final String outFile,
@@ -1448,14 +1775,30 @@ public class NGrams {
     }
 
     private static void usage() {
-        System.err.println("Usage: NGrams (index|search1|search2|search3|export)" +
-          "\n\n   index <indexPath> <confFile> <confFileEncoding> <inFile> <inFileEncoding> - index a list of documentes." +
+        System.err.println("Usage: NGrams (index|indexjson|delta|search1|search2|search3|export|frequencies)" +
+          "\n\n   index <indexPath> <confFile> <confFileEncoding> <inFile> <inFileEncoding> [--threads=<num>] [--fresh] [--profile=<name>] - index a list of documentes." +
           "\n       <indexPath> - Lucene index name/path" +
           "\n       <confFile> - xml configuration file. See documentation for format." +
           "\n       <confFileEncoding> - configuration file character encoding." +
           "\n       <inFile> - input file. See format bellow" +
           "\n       <inFileEncoding> - input file encoding" +
-          "\n\n   search1 <indexPath> <confFile> <confFileEncoding> <inFile> <inFileEncoding> <outFile> [<outFileEncoding>] [--report] - find similar documents." +
+          "\n       [--threads=<num>] - number of indexing threads. Default = 1" +
+          "\n       [--fresh] - only add documents (no update by id). Documents with an already indexed id are skipped" +
+          "\n       [--profile=<name>] - index writer profile: default, bulk-load, incremental or low-memory. Default = default" +
+          "\n\n   delta <indexPath> <confFile> <confFileEncoding> <inFile> <inFileEncoding> - apply a change file to an existing index." +
+          "\n       <indexPath> - Lucene index name/path" +
+          "\n       <confFile> - xml configuration file. See documentation for format." +
+          "\n       <confFileEncoding> - configuration file character encoding." +
+          "\n       <inFile> - change file. Each line is <op>|<id>|<ngram index/search text>|<content>|...|<content> where <op> is add, update or delete" +
+          "\n       <inFileEncoding> - change file encoding" +
+          "\n\n   indexjson <indexPath> <confFile> <confFileEncoding> <inFile> <inFileEncoding> [--profile=<name>] - index a list of json documents (one per line)." +
+          "\n       <indexPath> - Lucene index name/path" +
+          "\n       <confFile> - xml configuration file. See documentation for format." +
+          "\n       <confFileEncoding> - configuration file character encoding." +
+          "\n       <inFile> - input file. Each line is a json object whose property names are the configuration file field names" +
+          "\n       <inFileEncoding> - input file encoding" +
+          "\n       [--profile=<name>] - index writer profile: default, bulk-load, incremental or low-memory. Default = default" +
+          "\n\n   search1 <indexPath> <confFile> <confFileEncoding> <inFile> <inFileEncoding> <outFile> [<outFileEncoding>] [--report] [--threads=<num>] - find similar documents." +
           "\n       <indexPath> - Lucene index name/path" +
           "\n       <confFile> - xml configuration file. See documentation for format." +
           "\n       <confFileEncoding> - configuration file character encoding." +
@@ -1464,6 +1807,7 @@ public class NGrams {
           "\n       <outFile> - output file. See format bellow" +
           "\n       [<outFileEncoding>] - output file encoding. Default = UTF-8" +
           "\n       [--report] - if present the output will be a complete version otherwise a simple version will be shown" +
+          "\n       [--threads=<num>] - number of search threads. Default = 1" +
           "\n\n   search2 <indexPath> <confFile> <confFileEncoding> <text> [--report] - find similar documents." +
           "\n       <indexPath> - Lucene index name/path" +
           "\n       <confFile> - xml configuration file. See documentation for format." +
@@ -1482,6 +1826,11 @@ public class NGrams {
           "\n       <confFileEncoding> - configuration file character encoding." +
           "\n       <outFile> - output file following configuration file specification" +
           "\n       <outFileEncoding> - output file encoding" +
+          "\n\n   frequencies <indexPath> <confFile> <confFileEncoding> [<size>] - shows the most frequent ngrams of the indexed field." +
+          "\n       <indexPath> - Lucene index name/path" +
+          "\n       <confFile> - xml configuration file. See documentation for format." +
+          "\n       <confFileEncoding> - configuration file character encoding." +
+          "\n       [<size>] - number of ngrams. Default = " + DEF_FREQUENCY_TABLE_SIZE +
           "\n\nFormat of input file <inFile> line:  <id>|<ngram index/search text>|<content>|...|<content>" +
           "\nFormat of output file line: <rank>|<similarity>|<search doc id>|<index doc id>|<ngram search text>|" +
                      " <ngram index text>|<search_source>|<index_source>\n");
@@ -1500,36 +1849,87 @@ public class NGrams {
                                                   SAXException {
         final long startTime = new GregorianCalendar().getTimeInMillis();
 
-        if (args.length < 5) {
+        if ((args.length < 5) &&
+                     !((args.length == 4) && args[0].equals("frequencies"))) {
             usage();
         }
 
         final NGSchema schema = new NGSchema("dummy", args[2], args[3]);
 
         if (args[0].equals("index")) {
-            if (args.length != 6) {
+            if (args.length < 6) {
+                usage();
+            }
+            int numThreads = 1;
+            boolean freshBuild = false;
+            WriterProfile profile = WriterProfile.DEFAULT;
+            for (int idx = 6; idx < args.length; idx++) {
+                if (args[idx].startsWith("--threads=")) {
+                    numThreads = Integer.parseInt(args[idx].substring(10));
+                } else if (args[idx].equals("--fresh")) {
+                    freshBuild = true;
+                } else if (args[idx].startsWith("--profile=")) {
+                    profile = WriterProfile.fromProfileName(
+                                                     args[idx].substring(10));
+                } else {
+                    usage();
+                }
+            }
+            final NGIndex index = new NGIndex("dummy", args[1], false, profile);
+            index(index, schema, args[4], args[5], numThreads, freshBuild);
+            index.close();
+            System.out.println("Indexing has finished.");
+        } else if (args[0].equals("indexjson")) {
+            if (args.length < 6) {
                 usage();
             }
-            final NGIndex index = new NGIndex("dummy", args[1], false);
-            index(index, schema, args[4], args[5]);
+            WriterProfile profile = WriterProfile.DEFAULT;
+            for (int idx = 6; idx < args.length; idx++) {
+                if (args[idx].startsWith("--profile=")) {
+                    profile = WriterProfile.fromProfileName(
+                                                     args[idx].substring(10));
+                } else {
+                    usage();
+                }
+            }
+            final NGIndex index = new NGIndex("dummy", args[1], false, profile);
+            indexJson(index, schema, args[4], args[5]);
             index.close();
             System.out.println("Indexing has finished.");
+        } else if (args[0].equals("delta")) {
+            if (args.length != 6) {
+                usage();
+            }
+            final NGIndex index = new NGIndex("dummy", args[1], false,
+                                                    WriterProfile.INCREMENTAL);
+            indexDelta(index, schema, args[4], args[5]);
+            index.close();
+            System.out.println("Delta indexing has finished.");
         } else if (args[0].equals("search1")) {
-            if (args.length < 7) {
+            final List<String> sargs = new ArrayList<>();
+            int numThreads = 1;
+            for (final String arg: args) {
+                if (arg.startsWith("--threads=")) {
+                    numThreads = Integer.parseInt(arg.substring(10));
+                } else {
+                    sargs.add(arg);
+                }
+            }
+            if (sargs.size() < 7) {
                 usage();
             }
-            final NGIndex index = new NGIndex("dummy", args[1], true);
-            if (args.length == 7) {
-                search(index, schema, args[4], args[5], args[6], "utf-8", false, false);
-            } else if (args.length == 8) {
-                if (args[7].equals("---report")) {
-                    search(index, schema, args[4], args[5], args[6], "utf-8", true, false);
+            final NGIndex index = new NGIndex("dummy", sargs.get(1), true);
+            if (sargs.size() == 7) {
+                search(index, schema, sargs.get(4), sargs.get(5), sargs.get(6), "utf-8", false, false, numThreads);
+            } else if (sargs.size() == 8) {
+                if (sargs.get(7).equals("---report")) {
+                    search(index, schema, sargs.get(4), sargs.get(5), sargs.get(6), "utf-8", true, false, numThreads);
                 } else {
-                    search(index, schema, args[4], args[5], args[6], "utf-8", false, false);
+                    search(index, schema, sargs.get(4), sargs.get(5), sargs.get(6), "utf-8", false, false, numThreads);
                 }
             } else {
-                final String outFileEncoding = args[7].equals("--report") ? args[8] : args[7];
-                search(index, schema, args[4], args[5], args[6], outFileEncoding, true, false);
+                final String outFileEncoding = sargs.get(7).equals("--report") ? sargs.get(8) : sargs.get(7);
+                search(index, schema, sargs.get(4), sargs.get(5), sargs.get(6), outFileEncoding, true, false, numThreads);
             }
             index.close();
             System.out.println("Searching has finished.");
@@ -1575,6 +1975,14 @@ public class NGrams {
                 }
             }
             index.close();
+        } else if (args[0].equals("frequencies")) {
+            if (args.length > 5) {
+                usage();
+            }
+            final NGIndex index = new NGIndex("dummy", args[1], true);
+            frequencies(index, schema, (args.length == 5)
+                      ? Integer.parseInt(args[4]) : DEF_FREQUENCY_TABLE_SIZE);
+            index.close();
         } else if (args[0].equals("export")) {
             if (args.length != 6) {
                 usage();
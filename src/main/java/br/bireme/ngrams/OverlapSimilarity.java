@@ -0,0 +1,76 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.SmallFloat;
+
+/**
+ * Scores a document of the ngram query by the number of query ngrams it
+ * shares with the indexed ngram field, divided by the number of ngrams of the
+ * field. Each query ngram clause has its number of occurrences in the query
+ * text as boost, so a clause counts at most that number of occurrences of
+ * the ngram in the document. So the ranking follows the ngram similarity
+ * instead of BM25, which depends on the term frequencies of the collection.
+ * The norms are the same ones of BM25Similarity (encoded number of terms),
+ * so indexes created with one of them can be searched with the other.
+ */
+class OverlapSimilarity extends Similarity {
+    /*
+      Number of ngrams of the field of each encoded norm
+    */
+    private static final float[] LENGTH_TABLE = new float[256];
+
+    static {
+        for (int idx = 0; idx < 256; idx++) {
+            LENGTH_TABLE[idx] = Math.max(1, SmallFloat.byte4ToInt((byte)idx));
+        }
+    }
+
+    @Override
+    public long computeNorm(final FieldInvertState state) {
+        final int numTerms;
+
+        if (state.getIndexOptions() == IndexOptions.DOCS) {
+            numTerms = state.getUniqueTermCount();
+        } else {
+            numTerms = state.getLength() - state.getNumOverlap();
+        }
+        return SmallFloat.intToByte4(numTerms);
+    }
+
+    @Override
+    public SimScorer scorer(final float boost,
+                            final CollectionStatistics collectionStats,
+                            final TermStatistics... termStats) {
+        return new OverlapScorer(boost);
+    }
+
+    private static class OverlapScorer extends SimScorer {
+        private final float boost;  // occurrences of the ngram in the query
+
+        OverlapScorer(final float boost) {
+            this.boost = boost;
+        }
+
+        @Override
+        public float score(final float freq,
+                           final long norm) {
+            return Math.min(freq, boost) / LENGTH_TABLE[((byte)norm) & 0xFF];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OverlapSimilarity";
+    }
+}
@@ -24,7 +24,7 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
- *  <config>
+ *  <config docValues="true">
  *      <score minValue="1" minFields="1"/>
  *      <score minValue="0.9" minFields="1"/>
  *      <score minValue="0.7" minFields="3"/>
@@ -42,6 +42,10 @@ import org.xml.sax.SAXException;
  *      <noCompField pos="20" name="base de dados"/>
  *      <diceField pos="21" name="resumo" minScore="0.81" match="REQUIRED"/>
  *  </config>
+ *
+ *  docValues (optional, default false) - the normalized and not normalized
+ *  field contents are also indexed as doc values and the search comparisons
+ *  read them instead of the stored fields.
 
  * @author Heitor Barbieri
  * date: 20150707
@@ -92,8 +96,11 @@ class ParameterParser {
         final NodeList nScoreList = doc.getElementsByTagName("score");
         final TreeSet<Score> scrs = parseScores(name, nScoreList);
 
+        final boolean docValues = Boolean.parseBoolean(
+                        doc.getDocumentElement().getAttribute("docValues").trim());
+
         return new Parameters(scrs, src, id, authors, idxNGram, exact, ngram,
-                                                          regexp, nocomp, dice);
+                                               regexp, nocomp, dice, docValues);
     }
 
     static DatabaseField parseDatabaseField(final String name,
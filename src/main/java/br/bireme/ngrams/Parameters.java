@@ -32,6 +32,8 @@ public class Parameters {
     final Map<Integer,Field> sfields;  // search (pos,field)
     final Map<String,Field> nameFields;  // field name (name,field)
     final int maxIdxFieldPos; // last position into piped expression (index process)
+    final boolean docValues;  // index the comparison data as doc values
+    final SchemaPlan plan;  // fields compiled into handlers
 
     Parameters(final TreeSet<Score> scores,
                final DatabaseField db,
@@ -42,7 +44,8 @@ public class Parameters {
                final Set<NGramField> ngrams,
                final Set<RegExpField> regexps,
                final Set<NoCompareField> nocompare,
-               final Set<DiceField> dices) {
+               final Set<DiceField> dices,
+               final boolean docValues) {
         assert scores != null;
         assert db != null;
         assert id != null;
@@ -63,6 +66,7 @@ public class Parameters {
         this.regexps = regexps;
         this.nocompare = nocompare;
         this.dices = dices;
+        this.docValues = docValues;
 
         // number of fields
         final int nfields = 3 + ((authors == null) ? 0 : 1)  + exacts.size() +
@@ -101,6 +105,7 @@ public class Parameters {
         this.maxIdxFieldPos = maxPos;
 
         checkFields(nfields);
+        this.plan = new SchemaPlan(this);
     }
 
     public TreeSet<Score> getScores() {
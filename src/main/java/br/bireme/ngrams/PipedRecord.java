@@ -0,0 +1,275 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.text.StringEscapeUtils;
+
+/**
+ * Piped record (A|B|C|...|H) parser shared by the indexing and the search
+ * code. The line is scanned only once and the fields are kept as (start, end)
+ * slices of it, so a field string is only created when it is asked for.
+ * Html entities are only decoded if the line has an '&amp;' character.
+ * Spaces (and colons if colonAsSpace is true) around the '|' separators and
+ * at the line borders are removed, as the old " *\\| *" split did.
+ */
+public class PipedRecord {
+    /*
+       Used when the number of pipes of a search line is not the expected one
+       (fields with quotes).
+    */
+    private static final CSVFormat PIPED_CSV = CSVFormat.EXCEL.builder()
+                                                    .setDelimiter('|').get();
+
+    private final String line;   // line after html decoding
+    private final boolean colonAsSpace;
+    private final int rawPipes;  // number of '|' before the html decoding
+    private final int pipes;     // number of '|' after the html decoding
+    private final boolean empty; // the line has no content before decoding
+    private int begin;           // line start without border spaces
+    private int end;             // line end without border spaces
+    private int[] starts;
+    private int[] ends;
+    private int size;
+    private String[] csvFields;
+
+    private PipedRecord(final String line,
+                        final boolean colonAsSpace,
+                        final int rawPipes,
+                        final boolean empty) {
+        assert line != null;
+
+        this.line = line;
+        this.colonAsSpace = colonAsSpace;
+        this.rawPipes = rawPipes;
+        this.empty = empty;
+        this.starts = new int[16];
+        this.ends = new int[16];
+        this.size = 0;
+        this.csvFields = null;
+        this.pipes = empty ? 0 : scan();
+    }
+
+    /**
+     * Parses a document to be indexed. Html entities are decoded before the
+     * colons are converted into spaces.
+     * @param pipedDoc piped document
+     * @return the parsed record
+     */
+    public static PipedRecord parseDocument(final String pipedDoc) {
+        if (pipedDoc == null) {
+            throw new NullPointerException("pipedDoc");
+        }
+        final PipedRecord ret;
+
+        if (pipedDoc.indexOf('&') == -1) {
+            ret = new PipedRecord(pipedDoc, true, -1, false);
+        } else {
+            final String trimmed = pipedDoc.trim();
+            ret = new PipedRecord(trimmed.isEmpty() ? trimmed
+                                  : StringEscapeUtils.unescapeHtml4(trimmed),
+                                  true, Tools.countOccurrences(trimmed, '|'),
+                                  trimmed.isEmpty());
+        }
+        return ret;
+    }
+
+    /**
+     * Parses a search expression. Colons are converted into spaces before the
+     * html entities are decoded. If the number of pipes is not the expected
+     * one, the expression is parsed as a csv line with '|' delimiter.
+     * @param text search expression
+     * @param colonAsSpace if colons should be converted into spaces
+     * @param expectedPipes number of pipes of a well formed search expression
+     * @return the parsed record
+     * @throws IOException if the csv parser can not parse the expression
+     */
+    public static PipedRecord parseQuery(final String text,
+                                         final boolean colonAsSpace,
+                                         final int expectedPipes)
+                                                            throws IOException {
+        if (text == null) {
+            throw new NullPointerException("text");
+        }
+        final PipedRecord ret;
+
+        if (text.indexOf('&') == -1) {
+            ret = new PipedRecord(text, colonAsSpace, -1, false);
+        } else {
+            final String text1 = colonAsSpace ? text.replace(':', ' ').trim()
+                                              : text;
+            ret = new PipedRecord(text1.isEmpty() ? text1
+                        : StringEscapeUtils.unescapeHtml4(text1).trim(), false,
+                        Tools.countOccurrences(text1, '|'), text1.isEmpty());
+        }
+        if ((!ret.empty) && (ret.pipes != expectedPipes)) {
+            ret.parseCsv(text);
+        }
+        return ret;
+    }
+
+    /**
+     * @return true if the line has no content
+     */
+    public boolean isEmpty() {
+        return empty || (begin >= end);
+    }
+
+    /**
+     * @return number of '|' characters of the line before the html decoding
+     */
+    public int getRawPipes() {
+        return (rawPipes == -1) ? pipes : rawPipes;
+    }
+
+    /**
+     * @return number of fields
+     */
+    public int size() {
+        return (csvFields == null) ? size : csvFields.length;
+    }
+
+    /**
+     * @param pos field position
+     * @return the field content
+     */
+    public String get(final int pos) {
+        if ((pos < 0) || (pos >= size())) {
+            throw new IndexOutOfBoundsException("pos=" + pos + " size=" + size());
+        }
+        final String ret;
+
+        if (csvFields == null) {
+            final String str = line.substring(starts[pos], ends[pos]);
+            ret = colonAsSpace ? str.replace(':', ' ') : str;
+        } else {
+            ret = csvFields[pos];
+        }
+        return ret;
+    }
+
+    /**
+     * @return an array with all fields content
+     */
+    public String[] toArray() {
+        final int len = size();
+        final String[] ret = new String[len];
+
+        for (int idx = 0; idx < len; idx++) {
+            ret[idx] = get(idx);
+        }
+        return ret;
+    }
+
+    /**
+     * Joins the fields into a piped expression.
+     * @param fields fields content (null is an empty field)
+     * @return the piped expression
+     */
+    public static String join(final String[] fields) {
+        if (fields == null) {
+            throw new NullPointerException("fields");
+        }
+        final StringBuilder builder = new StringBuilder();
+
+        for (int idx = 0; idx < fields.length; idx++) {
+            if (idx > 0) {
+                builder.append('|');
+            }
+            if (fields[idx] != null) {
+                builder.append(fields[idx]);
+            }
+        }
+        return builder.toString();
+    }
+
+    private boolean isBorder(final char ch) {
+        return (ch <= ' ') || (colonAsSpace && (ch == ':'));
+    }
+
+    private boolean isSpace(final char ch) {
+        return (ch == ' ') || (colonAsSpace && (ch == ':'));
+    }
+
+    /**
+     * Splits the line into fields.
+     * @return number of '|' characters of the line
+     */
+    private int scan() {
+        int count = 0;
+
+        begin = 0;
+        end = line.length();
+        while ((begin < end) && isBorder(line.charAt(begin))) {
+            begin++;
+        }
+        while ((end > begin) && isBorder(line.charAt(end - 1))) {
+            end--;
+        }
+
+        int fstart = begin;
+        for (int idx = begin; idx < end; idx++) {
+            if (line.charAt(idx) == '|') {
+                int fend = idx;
+                while ((fend > fstart) && isSpace(line.charAt(fend - 1))) {
+                    fend--;
+                }
+                addField(fstart, fend);
+                count++;
+                fstart = idx + 1;
+                while ((fstart < end) && isSpace(line.charAt(fstart))) {
+                    fstart++;
+                }
+            }
+        }
+        addField(fstart, end);
+
+        return count;
+    }
+
+    private void addField(final int start,
+                          final int end) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, 2 * size);
+            ends = Arrays.copyOf(ends, 2 * size);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    private void parseCsv(final String text) throws IOException {
+        assert text != null;
+
+        final String text2;
+
+        if (rawPipes == -1) {  // html decoding was not necessary
+            final String str = line.substring(begin, end);
+            text2 = colonAsSpace ? str.replace(':', ' ') : str;
+        } else {
+            text2 = line;
+        }
+        final List<CSVRecord> records = PIPED_CSV.parse(
+                                         new StringReader(text2)).getRecords();
+        if (records.isEmpty()) {
+            throw new IOException(text);
+        }
+        final CSVRecord record = records.get(0);
+        final int rsize = record.size();
+
+        csvFields = new String[rsize];
+        for (int idx = 0; idx < rsize; idx++) {
+            csvFields[idx] = record.get(idx);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import org.apache.lucene.document.Document;
+
+/**
+ * Schema parameters compiled into arrays of field handlers. The field type
+ * dispatch is done once, when the plan is created, so document building and
+ * field comparison only walk the arrays.
+ */
+class SchemaPlan {
+    private final FieldHandler[] handlers;   // indexed by field position
+    final FieldHandler[] indexOrder;  // document field order (by name)
+    final FieldHandler[] checkOrder;  // comparison order (cheaper first)
+    final int[] matchable;  // fields of checkOrder[idx..] that can match
+    final int dbPos;
+    final int idPos;
+    final boolean docValues;  // comparison data is also indexed as doc values
+
+    SchemaPlan(final Parameters parameters) {
+        assert parameters != null;
+
+        final int size = parameters.sfields.size();
+        int idx = 0;
+
+        handlers = new FieldHandler[size];
+        indexOrder = new FieldHandler[parameters.nameFields.size()];
+        for (final br.bireme.ngrams.Field fld: parameters.sfields.values()) {
+            handlers[fld.pos] = FieldHandler.create(fld);
+        }
+        for (final br.bireme.ngrams.Field fld: parameters.nameFields.values()) {
+            indexOrder[idx++] = handlers[fld.pos];
+        }
+        checkOrder = Arrays.copyOf(handlers, size);
+        Arrays.sort(checkOrder, Comparator.comparingInt(FieldHandler::checkCost));
+        matchable = new int[size + 1];
+        for (int pos = size - 1; pos >= 0; pos--) {
+            matchable[pos] = matchable[pos + 1] +
+                                             (checkOrder[pos].canMatch() ? 1 : 0);
+        }
+        dbPos = parameters.db.pos;
+        idPos = parameters.id.pos;
+        docValues = parameters.docValues;
+    }
+
+    /**
+     * @return number of fields
+     */
+    int size() {
+        return handlers.length;
+    }
+
+    /**
+     * @param pos field position
+     * @return the handler of the field
+     */
+    FieldHandler get(final int pos) {
+        return handlers[pos];
+    }
+
+    /**
+     * Prepares the field contents of a search expression to be compared with
+     * many index documents.
+     * @param param search expression field contents ordered by field position
+     * @return the prepared contents ordered by field position
+     */
+    FieldHandler.Probe[] prepare(final String[] param) {
+        assert param != null;
+
+        final FieldHandler.Probe[] probes =
+                                       new FieldHandler.Probe[handlers.length];
+
+        for (int pos = 0; pos < handlers.length; pos++) {
+            probes[pos] = handlers[pos].prepare(param[pos].trim());
+        }
+        return probes;
+    }
+
+    /**
+     * @param doc index document with the stored fields
+     * @return the field contents of the document ordered by field position
+     */
+    FieldHandler.Values[] values(final Document doc) {
+        assert doc != null;
+
+        final FieldHandler.Values[] values =
+                                      new FieldHandler.Values[handlers.length];
+
+        for (int pos = 0; pos < handlers.length; pos++) {
+            values[pos] = handlers[pos].values(doc);
+        }
+        return values;
+    }
+
+    /**
+     * Creates a Lucene document.
+     * @param flds field contents ordered by field position
+     * @return the Lucene document
+     * @throws IOException if the database or the id field is missing
+     */
+    Document createDocument(final String[] flds) throws IOException {
+        return new DocumentTemplate(this).fill(flds);
+    }
+
+    /**
+     * @return a new document template to be used by only one thread
+     */
+    DocumentTemplate newTemplate() {
+        return new DocumentTemplate(this);
+    }
+}
@@ -0,0 +1,224 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.ScorerSupplier;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Filter of the documents that can have a minimum number of the query
+ * trigrams, checked against a 64 bit signature of the indexed text.
+ *
+ * Each trigram (without spaces) of the normalized indexed text sets one bit
+ * of the signature, chosen by a hash of the trigram, and the signature is
+ * stored as a numeric doc value. If a document has a query trigram, the bit
+ * of the trigram is set, so the query trigrams whose bits are set in the
+ * document signature are an upper bound of the query trigrams the document
+ * has. Hash collisions only set more bits, so no document having the
+ * minimum is rejected.
+ *
+ * The filter is a two phase iterator: the signature is only read for the
+ * documents already matched by the other clauses of the query, and the
+ * rejected documents are never scored or collected. Documents without
+ * signature (indexes created before it was added) are accepted.
+ */
+class SignatureQuery extends Query {
+    /**
+     * Size of the ngrams of the signature
+     */
+    static final int NGRAM_SIZE = 3;
+
+    /*
+      Cost of checking one document signature
+    */
+    private static final float MATCH_COST = 10;
+
+    private final String field;   // signature doc values field
+    private final int[] counts;   // number of query trigrams of each bit
+    private final long signature; // bits of the query trigrams
+    private final boolean collisions; // two query trigrams have the same bit
+    private final int minMatch;   // minimum number of query trigrams
+
+    /**
+     * @param field signature doc values field
+     * @param counts number of distinct query trigrams of each of the 64 bits
+     * @param minMatch minimum number of query trigrams of a document
+     */
+    SignatureQuery(final String field,
+                   final int[] counts,
+                   final int minMatch) {
+        if (field == null) {
+            throw new NullPointerException("field");
+        }
+        if (counts == null) {
+            throw new NullPointerException("counts");
+        }
+        if (counts.length != Long.SIZE) {
+            throw new IllegalArgumentException("counts.length != 64");
+        }
+        long sig = 0;
+        boolean coll = false;
+
+        for (int bit = 0; bit < Long.SIZE; bit++) {
+            if (counts[bit] > 0) {
+                sig |= 1L << bit;
+                coll |= (counts[bit] > 1);
+            }
+        }
+        this.field = field;
+        this.counts = counts.clone();
+        this.signature = sig;
+        this.collisions = coll;
+        this.minMatch = minMatch;
+    }
+
+    /**
+     * @param ngram ngram of NGRAM_SIZE chars
+     * @return the signature bit of the ngram (0 to 63)
+     */
+    static int bit(final CharSequence ngram) {
+        assert ngram != null;
+        assert ngram.length() == NGRAM_SIZE;
+
+        return bit(ngram.charAt(0), ngram.charAt(1), ngram.charAt(2));
+    }
+
+    private static int bit(final char ch1,
+                           final char ch2,
+                           final char ch3) {
+        final long key = ((long)ch1 << 32) | ((long)ch2 << 16) | ch3;
+
+        // Fibonacci hashing: the highest 6 bits of the product
+        return (int)((key * 0x9E3779B97F4A7C15L) >>> 58);
+    }
+
+    /**
+     * @param ntext normalized indexed text
+     * @return the signature with the bits of all trigrams without spaces of
+     *         the text
+     */
+    static long signature(final String ntext) {
+        assert ntext != null;
+
+        final int len = ntext.length();
+        long ret = 0;
+
+        for (int idx = 0; idx + NGRAM_SIZE <= len; idx++) {
+            final char ch1 = ntext.charAt(idx);
+            final char ch2 = ntext.charAt(idx + 1);
+            final char ch3 = ntext.charAt(idx + 2);
+
+            if ((ch1 != ' ') && (ch2 != ' ') && (ch3 != ' ')) {
+                ret |= 1L << bit(ch1, ch2, ch3);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param docSignature signature of a document
+     * @return true if the document can have minMatch query trigrams
+     */
+    private boolean canMatch(final long docSignature) {
+        final long common = docSignature & signature;
+        final boolean ret;
+
+        if (collisions) {
+            int total = 0;
+            long bits = common;
+
+            while ((bits != 0) && (total < minMatch)) {
+                total += counts[Long.numberOfTrailingZeros(bits)];
+                bits &= bits - 1;
+            }
+            ret = (total >= minMatch);
+        } else {
+            ret = (Long.bitCount(common) >= minMatch);
+        }
+        return ret;
+    }
+
+    @Override
+    public Weight createWeight(final IndexSearcher searcher,
+                               final ScoreMode scoreMode,
+                               final float boost) throws IOException {
+        return new ConstantScoreWeight(this, boost) {
+            @Override
+            public ScorerSupplier scorerSupplier(final LeafReaderContext context)
+                                                            throws IOException {
+                final NumericDocValues values =
+                                  DocValues.getNumeric(context.reader(), field);
+                final DocIdSetIterator approximation =
+                                 DocIdSetIterator.all(context.reader().maxDoc());
+                final TwoPhaseIterator twoPhase =
+                                 new TwoPhaseIterator(approximation) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        return !values.advanceExact(approximation.docID()) ||
+                                               canMatch(values.longValue());
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        return MATCH_COST;
+                    }
+                };
+                final Scorer scorer = new ConstantScoreScorer(score(),
+                                                          scoreMode, twoPhase);
+
+                return new DefaultScorerSupplier(scorer);
+            }
+
+            @Override
+            public boolean isCacheable(final LeafReaderContext context) {
+                return DocValues.isCacheable(context, field);
+            }
+        };
+    }
+
+    @Override
+    public void visit(final QueryVisitor visitor) {
+        if (visitor.acceptField(field)) {
+            visitor.visitLeaf(this);
+        }
+    }
+
+    @Override
+    public String toString(final String fld) {
+        return "signature(" + field + ",minMatch=" + minMatch + ")";
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return sameClassAs(other) &&
+               field.equals(((SignatureQuery)other).field) &&
+               Arrays.equals(counts, ((SignatureQuery)other).counts) &&
+               (minMatch == ((SignatureQuery)other).minMatch);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), field, Arrays.hashCode(counts),
+                                                                     minMatch);
+    }
+}
@@ -0,0 +1,60 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.io.IOException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+
+/**
+ * Loads only the first value of one stored string field of a document and
+ * stops reading the other ones. Used to get the indexed ngram field before
+ * deciding if the whole document should be loaded.
+ */
+class SingleFieldVisitor extends StoredFieldVisitor {
+    private final String fname;
+    private String value;
+
+    SingleFieldVisitor(final String fname) {
+        assert fname != null;
+
+        this.fname = fname;
+    }
+
+    /**
+     * Prepares the visitor for another document.
+     */
+    void reset() {
+        value = null;
+    }
+
+    /**
+     * @return the field value of the last visited document or null
+     */
+    String getValue() {
+        return value;
+    }
+
+    @Override
+    public Status needsField(final FieldInfo fieldInfo) throws IOException {
+        final Status ret;
+
+        if (value != null) {
+            ret = Status.STOP;
+        } else {
+            ret = fname.equals(fieldInfo.name) ? Status.YES : Status.NO;
+        }
+        return ret;
+    }
+
+    @Override
+    public void stringField(final FieldInfo fieldInfo,
+                            final String value) throws IOException {
+        this.value = value;
+    }
+}
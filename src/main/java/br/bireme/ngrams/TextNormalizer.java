@@ -0,0 +1,274 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Single pass implementation of Tools.normalize and Tools.normalize2. It gives
+ * the same output of lower casing, ordering the occurrences, decomposing
+ * (NFD), replacing every char not in [a-z0-9] by a space and then removing
+ * the spaces not between two numbers.
+ * The decomposition of the Latin chars comes from precomputed tables and
+ * only the other chars are decomposed by java.text.Normalizer. It is done
+ * char by char because the canonical reordering of NFD only moves combining
+ * marks, which are all replaced by spaces.
+ * Thread safe.
+ */
+final class TextNormalizer {
+    /*
+      Latin-1 Supplement, Latin Extended-A and Latin Extended-B
+    */
+    private static final int LATIN_END = 0x0250;
+
+    /*
+      Latin Extended Additional
+    */
+    private static final int EXT_START = 0x1E00;
+    private static final int EXT_END = 0x1F00;
+
+    /*
+      Decomposed chars of the Latin chars with every char not in [a-z0-9]
+      replaced by a space
+    */
+    private static final String[] LATIN = new String[LATIN_END];
+    private static final String[] EXT = new String[EXT_END - EXT_START];
+
+    /*
+      Regular expression metacharacters. A separator without them is split as
+      a literal string.
+    */
+    private static final String REGEX_META = ".$|()[]{}^?*+\\";
+
+    private static final ThreadLocal<TextNormalizer> NORMALIZERS =
+                                       ThreadLocal.withInitial(TextNormalizer::new);
+
+    static {
+        for (int ch = 0x80; ch < LATIN_END; ch++) {
+            LATIN[ch] = decompose(ch);
+        }
+        for (int ch = EXT_START; ch < EXT_END; ch++) {
+            EXT[ch - EXT_START] = decompose(ch);
+        }
+    }
+
+    private final StringBuilder builder = new StringBuilder();
+    private boolean wasNumber;  // last kept char is a number
+    private boolean pending;    // a space after a number was found
+
+    private TextNormalizer() {
+    }
+
+    /**
+     * Same as Tools.normalize.
+     * @param in input String
+     * @param occSeparator string separating each occurrence
+     * @return the normalized string
+     */
+    static String normalize(final String in,
+                            final String occSeparator) {
+        final String ret;
+
+        if (in == null) {
+            ret = null;
+        } else {
+            ret = NORMALIZERS.get().fold(orderOcc(in.trim().toLowerCase(),
+                                                                occSeparator));
+        }
+        return ret;
+    }
+
+    /**
+     * Same as Tools.normalize2.
+     * @param in input String
+     * @param occSeparator string separating each occurrence
+     * @return the normalized and sorted occurrences
+     */
+    static String[] normalize2(final String in,
+                               final String occSeparator) {
+        final String[] ret;
+
+        if (in == null) {
+            ret = null;
+        } else {
+            final TextNormalizer normalizer = NORMALIZERS.get();
+
+            ret = split(in.trim(), occSeparator);
+            for (int idx = 0; idx < ret.length; idx++) {
+                ret[idx] = normalizer.fold(ret[idx].trim().toLowerCase());
+            }
+            Arrays.sort(ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Same as Tools.orderOcc.
+     * @param in input String
+     * @param occSeparator string separating each occurrence
+     * @return the input string with the occurences ordered
+     */
+    static String orderOcc(final String in,
+                           final String occSeparator) {
+        if (in == null) return null;
+        if (occSeparator == null) return in;
+
+        final String[] split = split(in, occSeparator);
+        final String out;
+
+        if (split.length == 1) {
+            out = in;
+        } else {
+            final TreeSet<String> set = new TreeSet<>();
+            final StringBuilder builder = new StringBuilder(in.length());
+            boolean first = true;
+
+            for (String occ1: split) {
+                set.add(occ1.trim());
+            }
+            for (String occ2: set) {
+                if (first) {
+                    first = false;
+                } else {
+                    builder.append(occSeparator);
+                }
+                builder.append(occ2);
+            }
+            out = builder.toString();
+        }
+        return out;
+    }
+
+    /**
+     * Same as in.split(separator), without compiling the separator regular
+     * expression if it is a literal string.
+     * @param in input string
+     * @param separator separator regular expression
+     * @return the split strings
+     */
+    static String[] split(final String in,
+                          final String separator) {
+        boolean literal = !separator.isEmpty();
+
+        for (int idx = 0; literal && (idx < separator.length()); idx++) {
+            literal = (REGEX_META.indexOf(separator.charAt(idx)) == -1);
+        }
+        if (!literal) {
+            return in.split(separator);
+        }
+
+        int pos = in.indexOf(separator);
+        if (pos == -1) {
+            return new String[] { in };
+        }
+
+        final List<String> list = new ArrayList<>();
+        int start = 0;
+
+        while (pos != -1) {
+            list.add(in.substring(start, pos));
+            start = pos + separator.length();
+            pos = in.indexOf(separator, start);
+        }
+        list.add(in.substring(start));
+
+        // trailing empty strings are not included (split limit 0)
+        int size = list.size();
+        while ((size > 0) && list.get(size - 1).isEmpty()) {
+            size--;
+        }
+        return list.subList(0, size).toArray(new String[size]);
+    }
+
+    /**
+     * Decomposes a lower case string and keeps only the [a-z0-9] chars and
+     * the spaces between two numbers.
+     * @param in lower case string
+     * @return the normalized string
+     */
+    private String fold(final String in) {
+        final int len = in.length();
+
+        builder.setLength(0);
+        wasNumber = false;
+        pending = false;
+
+        for (int idx = 0; idx < len;) {
+            final char ch = in.charAt(idx);
+
+            if (ch < 0x80) {
+                add(ch);
+                idx++;
+            } else if (ch < LATIN_END) {
+                addAll(LATIN[ch]);
+                idx++;
+            } else if ((ch >= EXT_START) && (ch < EXT_END)) {
+                addAll(EXT[ch - EXT_START]);
+                idx++;
+            } else {
+                final int cp = in.codePointAt(idx);
+
+                addAll(decompose(cp));
+                idx += Character.charCount(cp);
+            }
+        }
+        return builder.toString();
+    }
+
+    private void addAll(final String decomposed) {
+        final int len = decomposed.length();
+
+        for (int idx = 0; idx < len; idx++) {
+            add(decomposed.charAt(idx));
+        }
+    }
+
+    private void add(final char ch) {
+        if ((ch >= 'a') && (ch <= 'z')) {
+            wasNumber = false;
+            pending = false;
+            builder.append(ch);
+        } else if ((ch >= '0') && (ch <= '9')) {
+            if (pending) {
+                builder.append(' ');
+                pending = false;
+            }
+            wasNumber = true;
+            builder.append(ch);
+        } else {
+            pending = wasNumber;
+        }
+    }
+
+    /**
+     * @param cp code point
+     * @return the NFD decomposition of the code point with each code point
+     *         not in [a-z0-9] replaced by a space
+     */
+    private static String decompose(final int cp) {
+        final String nfd = Normalizer.normalize(new String(Character.toChars(cp)),
+                                                       Normalizer.Form.NFD);
+        final StringBuilder ret = new StringBuilder(nfd.length());
+
+        for (int idx = 0; idx < nfd.length();) {
+            final int cp2 = nfd.codePointAt(idx);
+
+            if (((cp2 >= 'a') && (cp2 <= 'z')) || ((cp2 >= '0') && (cp2 <= '9'))) {
+                ret.append((char)cp2);
+            } else {
+                ret.append(' ');
+            }
+            idx += Character.charCount(cp2);
+        }
+        return ret.toString();
+    }
+}
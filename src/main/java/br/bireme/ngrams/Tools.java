@@ -13,12 +13,9 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
-import java.text.Normalizer;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
@@ -27,7 +24,6 @@ import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
-import org.apache.lucene.search.spell.NGramDistance;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
@@ -38,6 +34,11 @@ import org.apache.lucene.util.BytesRef;
  * date: 20150626
  */
 public class Tools {
+    /*
+      Trigram distance used by NGDistance(). Thread safe.
+    */
+    private static final NGramSimilarity NG_DISTANCE = new NGramSimilarity(3);
+
     public static void showTerms(final String indexName,
                                  final String fieldName) throws IOException {
         if (indexName == null) {
@@ -189,31 +190,7 @@ public class Tools {
      */
     public static String orderOcc(final String in,
                                   final String occSeparator) {
-        if (in == null) return null;
-        if (occSeparator == null) return in;
-
-        final String[] split = in.split(occSeparator);
-        String out = "";
-
-        if (split.length == 1) {
-            out = in;
-        } else {
-            final TreeSet<String> set = new TreeSet<>();
-            boolean first = true;
-
-            for (String occ1: split) {
-                set.add(occ1.trim());
-            }
-            for (String occ2: set) {
-                if (first) {
-                    first = false;
-                } else {
-                    out += occSeparator;
-                }
-                out += occ2;
-            }
-        }
-        return out;
+        return TextNormalizer.orderOcc(in, occSeparator);
     }
 
     /**
@@ -225,36 +202,7 @@ public class Tools {
      */
     public static String normalize(final String in,
                                    final String occSeparator) {
-        final String ret;
-
-        if (in == null) {
-            ret = null;
-        } else {
-            final String in2 = orderOcc(in.trim().toLowerCase(), occSeparator);
-            final String aux = Normalizer.normalize(in2, Normalizer.Form.NFD).
-                                               replaceAll("[^a-z0-9]", " ");
-            final int len = aux.length();
-            final StringBuilder builder = new StringBuilder();
-            boolean wasNumber = false;
-
-            for (int idx = 0; idx < len; idx++) {
-                final int ch = aux.charAt(idx);
-                if ((ch >= 97) && (ch <= 122)) {  // a-z
-                    wasNumber = false;
-                    builder.append((char)ch);
-                } else if ((ch >= 48) && (ch <= 57)) { // 0-9
-                    wasNumber = true;
-                    builder.append((char)ch);
-                } else if ((idx > 0) && (idx < len - 1)) {
-                    final int after  = aux.charAt(idx + 1);
-                    if (wasNumber && (after >= 48) && (after <= 57)) { // 0-9
-                        builder.append(' ');
-                    }
-                }
-            }
-            ret = builder.toString();
-        }
-        return ret;
+        return TextNormalizer.normalize(in, occSeparator);
     }
 
     /**
@@ -266,42 +214,7 @@ public class Tools {
      */
     public static String[] normalize2(final String in,
                                       final String occSeparator) {
-        final String[] ret;
-
-        if (in == null) {
-            ret = null;
-        } else {
-            ret = in.trim().split(occSeparator);
-            final int len = ret.length;
-
-            for (int idx = 0; idx < len; idx++) {
-                final String str1 = ret[idx].trim().toLowerCase();
-                final String str2 = Normalizer.normalize(str1, Normalizer.Form.NFD).
-                    replaceAll("[^a-z0-9]", " ");
-                final StringBuilder builder = new StringBuilder();
-                boolean wasNumber = false;
-                int len2 = str2.length();
-                for (int idx2 = 0; idx2 < len2; idx2++) {
-                    final int ch = str2.charAt(idx2);
-                    if ((ch >= 97) && (ch <= 122)) {  // a-z
-                        wasNumber = false;
-                        builder.append((char)ch);
-                    } else if ((ch >= 48) && (ch <= 57)) { // 0-9
-                        wasNumber = true;
-                        builder.append((char)ch);
-                    } else if ((idx2 > 0) && (idx2 < len2 - 1)) {
-                        final int after  = str2.charAt(idx2 + 1);
-                        if (wasNumber && (after >= 48) && (after <= 57)) { // 0-9
-                            builder.append(' ');
-                        }
-                    }
-                }
-                ret[idx] = builder.toString();
-            }
-            Arrays.sort(ret);
-        }
-
-        return ret;
+        return TextNormalizer.normalize2(in, occSeparator);
     }
 
     public static int countOccurrences(final String in,
@@ -320,7 +233,7 @@ public class Tools {
 
     public static float NGDistance(final String str1,
                                    final String str2) {
-        return new NGramDistance(3).getDistance(str1, str2);
+        return NG_DISTANCE.getDistance(str1, str2);
     }
 
     public static String mkString(final String[] entries,
@@ -0,0 +1,99 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/**
+ * IndexWriter configurations used by NGIndex.
+ *
+ * DEFAULT     - Lucene default configuration. The index is merged into one
+ *               segment at the end of a full indexing.
+ * BULK_LOAD   - large RAM buffer and few merges during the load. The index is
+ *               merged into at most 8 segments at the end.
+ * INCREMENTAL - Lucene default RAM buffer (16 MB), so changes are flushed
+ *               often. No final merge, the merge policy takes care of the
+ *               segments.
+ * LOW_MEMORY  - very small RAM buffer, one merge at a time and limited segment
+ *               size. The index is merged into at most 16 segments at the end.
+ */
+public enum WriterProfile {
+    DEFAULT(IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB, 0, 0, false, 1),
+    BULK_LOAD(512, 20, 5 * 1024, false, 8),
+    INCREMENTAL(IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB, 10, 5 * 1024,
+                                                                    false, 0),
+    LOW_MEMORY(8, 10, 1024, true, 16);
+
+    private final double ramBufferSizeMB;
+    private final double segmentsPerTier;  // 0 - Lucene default
+    private final double maxMergedSegmentMB; // 0 - Lucene default
+    private final boolean serialMerges;
+    private final int finalSegments; // 0 - no final forced merge
+
+    WriterProfile(final double ramBufferSizeMB,
+                  final double segmentsPerTier,
+                  final double maxMergedSegmentMB,
+                  final boolean serialMerges,
+                  final int finalSegments) {
+        this.ramBufferSizeMB = ramBufferSizeMB;
+        this.segmentsPerTier = segmentsPerTier;
+        this.maxMergedSegmentMB = maxMergedSegmentMB;
+        this.serialMerges = serialMerges;
+        this.finalSegments = finalSegments;
+    }
+
+    /**
+     * @return maximum number of segments after a full indexing or 0 if no
+     *         forced merge should be done
+     */
+    public int getFinalSegments() {
+        return finalSegments;
+    }
+
+    /**
+     * @return profile name as used in the command line (bulk-load, ...)
+     */
+    public String getProfileName() {
+        return name().toLowerCase().replace('_', '-');
+    }
+
+    public static WriterProfile fromProfileName(final String profileName) {
+        if (profileName == null) {
+            throw new NullPointerException("profileName");
+        }
+        for (WriterProfile profile: values()) {
+            if (profile.getProfileName().equals(profileName.trim().toLowerCase())) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("invalid writer profile: " +
+                                                                  profileName);
+    }
+
+    IndexWriterConfig configure(final IndexWriterConfig cfg) {
+        assert cfg != null;
+
+        if (this != DEFAULT) {
+            final TieredMergePolicy policy = new TieredMergePolicy();
+
+            policy.setSegmentsPerTier(segmentsPerTier);
+            policy.setMaxMergedSegmentMB(maxMergedSegmentMB);
+            cfg.setRAMBufferSizeMB(ramBufferSizeMB);
+            cfg.setMergePolicy(policy);
+            if (serialMerges) {
+                cfg.setMergeScheduler(new SerialMergeScheduler());
+            } else {
+                cfg.setMergeScheduler(new ConcurrentMergeScheduler());
+            }
+        }
+        return cfg;
+    }
+}
@@ -0,0 +1,140 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the multi threaded search (BatchSearcher) writes the same
+ * output file of the single threaded one, including the suppression of the
+ * pairs of documents already found (selfCheck), which depends on the order
+ * of the input lines.
+ */
+public class BatchSearcherTest {
+    private static final String SCHEMA =
+        "<schema docValues=\"true\">\n" +
+        "  <databaseField pos=\"0\"/>\n" +
+        "  <idField pos=\"1\"/>\n" +
+        "  <idxNGramField name=\"titulo\" pos=\"2\"/>\n" +
+        "  <exactField name=\"ano\" pos=\"3\" match=\"MAX_SCORE\"/>\n" +
+        "  <score minValue=\"0.6\" minFields=\"0\"/>\n" +
+        "  <score minValue=\"0.4\" minFields=\"1\"/>\n" +
+        "</schema>";
+
+    private static final String[] WORDS = {
+        "saude", "publica", "brasil", "estudo", "avaliacao", "criancas",
+        "hospital", "tratamento", "doenca", "cronica", "atencao", "primaria",
+        "vigilancia", "epidemiologica", "analise", "dados", "regiao", "sul",
+        "mortalidade", "infantil", "qualidade", "vida", "idosos", "programa"
+    };
+
+    @ClassRule
+    public static final TemporaryFolder FOLDER = new TemporaryFolder();
+
+    private static NGSchema schema;
+    private static NGIndex index;
+    private static File inFile;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        final Random random = new Random(20150626);
+        final List<String> lines = new ArrayList<>();
+        int id = 0;
+
+        // titles with near duplicates of other ids and databases
+        for (int title = 0; title < 150; title++) {
+            final StringBuilder builder = new StringBuilder();
+            final int len = 4 + random.nextInt(5);
+
+            for (int word = 0; word < len; word++) {
+                if (word > 0) {
+                    builder.append(' ');
+                }
+                builder.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            final String year = Integer.toString(1990 + random.nextInt(30));
+            final int copies = 1 + random.nextInt(3);
+
+            for (int copy = 0; copy < copies; copy++) {
+                final StringBuilder text = new StringBuilder(builder);
+
+                if (copy > 0) {  // typo
+                    text.setCharAt(random.nextInt(text.length()),
+                                   (char)('a' + random.nextInt(26)));
+                }
+                lines.add("db" + random.nextInt(2) + "|" + (++id) + "|" +
+                                                          text + "|" + year);
+            }
+        }
+        schema = new NGSchema("test", SCHEMA);
+        inFile = FOLDER.newFile("in.txt");
+        Files.write(inFile.toPath(), lines, StandardCharsets.UTF_8);
+
+        final String indexPath = FOLDER.newFolder("index").getPath();
+        final NGIndex windex = new NGIndex("test", indexPath, false);
+        try {
+            NGrams.index(windex, schema, inFile.getPath(), "UTF-8");
+        } finally {
+            windex.close();
+        }
+        index = new NGIndex("test", indexPath, true);
+    }
+
+    @AfterClass
+    public static void closeIndex() {
+        if (index != null) {
+            index.close();
+        }
+    }
+
+    @Test
+    public void selfCheck() throws Exception {
+        check(false, true);
+    }
+
+    @Test
+    public void noSelfCheck() throws Exception {
+        check(false, false);
+    }
+
+    @Test
+    public void report() throws Exception {
+        check(true, true);
+    }
+
+    private static void check(final boolean report,
+                              final boolean selfCheck) throws Exception {
+        final File out1 = FOLDER.newFile();
+        final File out4 = FOLDER.newFile();
+
+        NGrams.search(index, schema, inFile.getPath(), "UTF-8",
+                      out1.getPath(), "UTF-8", report, selfCheck, 1);
+        NGrams.search(index, schema, inFile.getPath(), "UTF-8",
+                      out4.getPath(), "UTF-8", report, selfCheck, 4);
+
+        final byte[] expected = Files.readAllBytes(out1.toPath());
+
+        // more than the header line
+        assertTrue(new String(expected, StandardCharsets.UTF_8).split("\n")
+                                                                .length > 1);
+        assertArrayEquals(expected, Files.readAllBytes(out4.toPath()));
+    }
+}
@@ -0,0 +1,155 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import org.apache.lucene.search.spell.NGramDistance;
+import org.junit.Test;
+
+/**
+ * Seeded differential test of NGramSimilarity against Lucene NGramDistance.
+ * The similarities must be the same floats (bit by bit), and the threshold
+ * version must return the exact similarity when it reaches the threshold and
+ * a value lower than the threshold otherwise.
+ */
+public class NGramSimilarityTest {
+    private static final int[] SIZES = { 1, 2, 3, 4 };
+
+    /*
+      Small alphabet, so the random strings share many ngrams
+    */
+    private static final char[] ALPHABET = "abcde 01\u0000é".toCharArray();
+
+    private static final float[] THRESHOLDS = {
+        Float.NEGATIVE_INFINITY, 0f, 0.3f, 0.5f, 0.7f, 0.9f, 1f
+    };
+
+    private static final String[] CORPUS = {
+        "",
+        "a",
+        "ab",
+        "abc",
+        "abcd",
+        "aaaa",
+        "a a",
+        "saude publica",
+        "saude publica no brasil",
+        "publica saude",
+        "\u0000abc",
+        "abc\u0000",
+        "mortalidade infantil na regiao sul",
+        "mortalidade infantil regiao sul"
+    };
+
+    @Test
+    public void corpus() {
+        for (final int size: SIZES) {
+            final NGramDistance expected = new NGramDistance(size);
+            final NGramSimilarity actual = new NGramSimilarity(size);
+
+            for (final String source: CORPUS) {
+                for (final String target: CORPUS) {
+                    check(expected, actual, source, target);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void randomPairs() {
+        final Random random = new Random(20150626);
+
+        for (int count = 0; count < 200000; count++) {
+            // sizes interleaved, as the thread buffers are shared by them
+            final int size = SIZES[random.nextInt(SIZES.length)];
+            final String source = randomString(random, random.nextInt(40));
+            final String target = random.nextBoolean()
+                                ? mutate(random, source)
+                                : randomString(random, random.nextInt(40));
+
+            check(new NGramDistance(size), new NGramSimilarity(size),
+                                                               source, target);
+        }
+    }
+
+    private static void check(final NGramDistance expected,
+                              final NGramSimilarity actual,
+                              final String source,
+                              final String target) {
+        final float dist = expected.getDistance(source, target);
+
+        if (Float.floatToIntBits(dist) != Float.floatToIntBits(
+                                         actual.getDistance(source, target))) {
+            assertEquals(message(expected, source, target, null),
+                         dist, actual.getDistance(source, target), 0f);
+        }
+
+        final NGramSimilarity.Source prepared = actual.prepare(source);
+
+        for (final float threshold: THRESHOLDS) {
+            final float sim = prepared.getDistance(target, threshold);
+
+            if (dist >= threshold) {
+                if (Float.floatToIntBits(dist) != Float.floatToIntBits(sim)) {
+                    assertEquals(message(expected, source, target, threshold),
+                                 dist, sim, 0f);
+                }
+            } else if (sim >= threshold) {
+                fail(message(expected, source, target, threshold) +
+                                        " sim=" + sim + " expected=" + dist);
+            }
+        }
+    }
+
+    private static String randomString(final Random random,
+                                       final int len) {
+        final char[] chars = new char[len];
+
+        for (int idx = 0; idx < len; idx++) {
+            chars[idx] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the string with a few random insertions, deletions and
+     *         substitutions
+     */
+    private static String mutate(final Random random,
+                                 final String in) {
+        final StringBuilder builder = new StringBuilder(in);
+        final int changes = random.nextInt(4);
+
+        for (int change = 0; change < changes; change++) {
+            final int op = random.nextInt(3);
+            final int len = builder.length();
+
+            if ((op == 0) || (len == 0)) {
+                builder.insert(random.nextInt(len + 1),
+                                        ALPHABET[random.nextInt(ALPHABET.length)]);
+            } else if (op == 1) {
+                builder.deleteCharAt(random.nextInt(len));
+            } else {
+                builder.setCharAt(random.nextInt(len),
+                                        ALPHABET[random.nextInt(ALPHABET.length)]);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String message(final NGramDistance distance,
+                                  final String source,
+                                  final String target,
+                                  final Float threshold) {
+        return distance + " source=[" + source + "] target=[" + target + "]" +
+                       ((threshold == null) ? "" : " threshold=" + threshold);
+    }
+}
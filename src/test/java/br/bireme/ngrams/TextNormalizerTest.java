@@ -0,0 +1,326 @@
+/*=========================================================================
+
+    NGrams © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/NGrams/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.ngrams;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Golden corpus equivalence test of Tools.normalize, Tools.normalize2 and
+ * Tools.orderOcc (TextNormalizer) against a frozen copy of their previous
+ * implementations (NFD + replaceAll + filtering loop, String.split).
+ * Each corpus string is checked with every separator under every locale,
+ * as the lower casing depends on the default locale.
+ */
+public class TextNormalizerTest {
+    private static final Locale[] LOCALES = {
+        Locale.ENGLISH, Locale.forLanguageTag("pt-BR"),
+        Locale.forLanguageTag("tr"), Locale.forLanguageTag("lt")
+    };
+
+    /*
+      Regular expression metacharacters and literal separators
+    */
+    private static final String[] SEPARATORS = {
+        NGrams.OCC_SEPARATOR, ";", "ab", " ", ".", "|", "$", "\\+", "\\s*;\\s*",
+        "[,;]", "(x)", "a.b", "\\|"
+    };
+
+    private static final String[] CORPUS = {
+        "",
+        " ",
+        "Hello World",
+        "  Trimmed  Text  ",
+        // Latin-1 Supplement
+        "àáâãäå çèéêë ìíîï ñòóôõö ùúûüý ÿ ÀÉÎÕÜ ß æ Æ ø Ø ð þ µ ª º ¹²³ ¼½¾",
+        "São Paulo, Brasília - Açúcar e Maçã",
+        // Latin Extended-A
+        "Łódź Ōsaka œuvre Œ ĳ Ĳ ŀ Ŀ ŉ ſ ő ű Ħ ħ ı İ Ŋ",
+        // Latin Extended-B
+        "ǆ ǅ Ǆ ǉ ǌ ș ț Ș Ț ǿ ǻ ƀ ƒ Ƕ ǰ ȩ ɏ",
+        // Latin Extended Additional
+        "ẞ ạ ả ấ ầ ẩ ẫ ậ ỹ ỳ ḯ ṩ ẛ ẚ ḁ ỿ",
+        // combining marks (decomposed input)
+        "é ç ạ̀ ñö 1́2 3 ́ 4",
+        "̧́leading marks",
+        // surrogates: supplementary letters, emoji, unpaired halves
+        "𝔄𝔞 😀 smile \uD800 lone \uDC00 low",
+        "𝟏𝟐 mathematical digits",
+        // dotted and dotless I (locale dependent lower casing)
+        "ISTANBUL İstanbul ıi Iİ DİYARBAKIR i̇",
+        "Iİı İI İı",
+        // digits: a space is only kept between two numbers
+        "1 2",
+        "1  2",
+        "1 - 2",
+        "1-2-3",
+        "a 1",
+        "1 a",
+        "1 a 2",
+        " 12 ",
+        "12 ",
+        " 12",
+        "1 é 2",
+        "1é2",
+        "1 ½ 2",
+        "1́ 2",
+        "a1 2b 3 c 4",
+        "vol. 12, n. 3 (2019) p. 45-67",
+        "2019//@//2018//@// 2017",
+        // separators inside the text
+        "b//@//a//@//c",
+        "b //@// a //@// a",
+        "z;y; x ;w;",
+        ";;a;;",
+        "a.b.c",
+        "x|y|x",
+        "cab ab ba",
+        "1$2$3+4",
+        // other scripts
+        "Ελληνικά ΣΊΣΥΦΟΣ ς σ",
+        "Кириллица Ёё",
+        "한국어 テスト 中文",
+        "ﬁ ﬂ ﬀ Ⅻ ⑫ ㎏ ™ Å",
+        "\t tab\nnewline\r nbsp em​zw",
+    };
+
+    private Locale defLocale;
+
+    @Before
+    public void saveLocale() {
+        defLocale = Locale.getDefault();
+    }
+
+    @After
+    public void restoreLocale() {
+        Locale.setDefault(defLocale);
+    }
+
+    @Test
+    public void goldenCorpus() {
+        for (final Locale locale: LOCALES) {
+            Locale.setDefault(locale);
+            for (final String text: CORPUS) {
+                check(text);
+            }
+        }
+    }
+
+    @Test
+    public void randomCorpus() {
+        final char[] pool = ("abcXYZ019 -.,;|/@$+()[]\\*?^{}" +
+            "àÉçÑöÿßæøŁőœǆșǿẞạỹİıIí̧̈ΣςĲﬁ½²한").toCharArray();
+        final String[] supplementary = { "𝔄", "😀",
+                                         "𝟏", "\uD800", "\uDC00",
+                                         "//@//" };
+        final Random random = new Random(20150626);
+        final StringBuilder builder = new StringBuilder();
+
+        for (final Locale locale: LOCALES) {
+            Locale.setDefault(locale);
+            for (int count = 0; count < 5000; count++) {
+                final int len = random.nextInt(24);
+
+                builder.setLength(0);
+                for (int idx = 0; idx < len; idx++) {
+                    if (random.nextInt(10) == 0) {
+                        builder.append(supplementary[random.nextInt(
+                                                        supplementary.length)]);
+                    } else {
+                        builder.append(pool[random.nextInt(pool.length)]);
+                    }
+                }
+                check(builder.toString());
+            }
+        }
+    }
+
+    /**
+     * Every BMP char alone, between two digits and between two letters.
+     */
+    @Test
+    public void bmpSweep() {
+        for (final Locale locale: LOCALES) {
+            Locale.setDefault(locale);
+            for (int ch = 0; ch <= 0xFFFF; ch++) {
+                final String str = String.valueOf((char)ch);
+
+                checkNormalize(str, NGrams.OCC_SEPARATOR);
+                checkNormalize("1" + str + "2", NGrams.OCC_SEPARATOR);
+                checkNormalize("a" + str + "b", NGrams.OCC_SEPARATOR);
+            }
+        }
+    }
+
+    @Test
+    public void nullInput() {
+        assertEquals(null, Tools.normalize(null, NGrams.OCC_SEPARATOR));
+        assertArrayEquals(null, Tools.normalize2(null, NGrams.OCC_SEPARATOR));
+        assertEquals(null, Tools.orderOcc(null, NGrams.OCC_SEPARATOR));
+        assertEquals("b;a", Tools.orderOcc("b;a", null));
+    }
+
+    private static void check(final String text) {
+        for (final String separator: SEPARATORS) {
+            checkNormalize(text, separator);
+            if (!Arrays.equals(Legacy.normalize2(text, separator),
+                               Tools.normalize2(text, separator))) {
+                assertArrayEquals(message(text, separator),
+                                  Legacy.normalize2(text, separator),
+                                  Tools.normalize2(text, separator));
+            }
+            if (!Legacy.orderOcc(text, separator).equals(
+                                           Tools.orderOcc(text, separator))) {
+                assertEquals(message(text, separator),
+                             Legacy.orderOcc(text, separator),
+                             Tools.orderOcc(text, separator));
+            }
+        }
+    }
+
+    private static void checkNormalize(final String text,
+                                       final String separator) {
+        final String expected = Legacy.normalize(text, separator);
+        final String actual = Tools.normalize(text, separator);
+
+        if (!expected.equals(actual)) {
+            assertEquals(message(text, separator), expected, actual);
+        }
+    }
+
+    private static String message(final String text,
+                                  final String separator) {
+        final List<String> codes = new ArrayList<>();
+
+        for (int idx = 0; idx < text.length(); idx++) {
+            codes.add(Integer.toHexString(text.charAt(idx)));
+        }
+        return "text=[" + text + "] " + codes + " separator=[" + separator +
+                                     "] locale=" + Locale.getDefault();
+    }
+
+    /**
+     * Frozen copy of the previous implementations of Tools.orderOcc,
+     * Tools.normalize and Tools.normalize2. Do not change.
+     */
+    private static class Legacy {
+        static String orderOcc(final String in,
+                               final String occSeparator) {
+            if (in == null) return null;
+            if (occSeparator == null) return in;
+
+            final String[] split = in.split(occSeparator);
+            String out = "";
+
+            if (split.length == 1) {
+                out = in;
+            } else {
+                final TreeSet<String> set = new TreeSet<>();
+                boolean first = true;
+
+                for (String occ1: split) {
+                    set.add(occ1.trim());
+                }
+                for (String occ2: set) {
+                    if (first) {
+                        first = false;
+                    } else {
+                        out += occSeparator;
+                    }
+                    out += occ2;
+                }
+            }
+            return out;
+        }
+
+        static String normalize(final String in,
+                                final String occSeparator) {
+            final String ret;
+
+            if (in == null) {
+                ret = null;
+            } else {
+                final String in2 = orderOcc(in.trim().toLowerCase(), occSeparator);
+                final String aux = Normalizer.normalize(in2, Normalizer.Form.NFD).
+                                                   replaceAll("[^a-z0-9]", " ");
+                final int len = aux.length();
+                final StringBuilder builder = new StringBuilder();
+                boolean wasNumber = false;
+
+                for (int idx = 0; idx < len; idx++) {
+                    final int ch = aux.charAt(idx);
+                    if ((ch >= 97) && (ch <= 122)) {  // a-z
+                        wasNumber = false;
+                        builder.append((char)ch);
+                    } else if ((ch >= 48) && (ch <= 57)) { // 0-9
+                        wasNumber = true;
+                        builder.append((char)ch);
+                    } else if ((idx > 0) && (idx < len - 1)) {
+                        final int after  = aux.charAt(idx + 1);
+                        if (wasNumber && (after >= 48) && (after <= 57)) { // 0-9
+                            builder.append(' ');
+                        }
+                    }
+                }
+                ret = builder.toString();
+            }
+            return ret;
+        }
+
+        static String[] normalize2(final String in,
+                                   final String occSeparator) {
+            final String[] ret;
+
+            if (in == null) {
+                ret = null;
+            } else {
+                ret = in.trim().split(occSeparator);
+                final int len = ret.length;
+
+                for (int idx = 0; idx < len; idx++) {
+                    final String str1 = ret[idx].trim().toLowerCase();
+                    final String str2 = Normalizer.normalize(str1, Normalizer.Form.NFD).
+                        replaceAll("[^a-z0-9]", " ");
+                    final StringBuilder builder = new StringBuilder();
+                    boolean wasNumber = false;
+                    int len2 = str2.length();
+                    for (int idx2 = 0; idx2 < len2; idx2++) {
+                        final int ch = str2.charAt(idx2);
+                        if ((ch >= 97) && (ch <= 122)) {  // a-z
+                            wasNumber = false;
+                            builder.append((char)ch);
+                        } else if ((ch >= 48) && (ch <= 57)) { // 0-9
+                            wasNumber = true;
+                            builder.append((char)ch);
+                        } else if ((idx2 > 0) && (idx2 < len2 - 1)) {
+                            final int after  = str2.charAt(idx2 + 1);
+                            if (wasNumber && (after >= 48) && (after <= 57)) { // 0-9
+                                builder.append(' ');
+                            }
+                        }
+                    }
+                    ret[idx] = builder.toString();
+                }
+                Arrays.sort(ret);
+            }
+
+            return ret;
+        }
+    }
+}